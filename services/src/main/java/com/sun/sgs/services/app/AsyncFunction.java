@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+
+/**
+ * A function applied to the result of an asynchronous task, used to
+ * compose tasks through an {@code AsyncTaskStage}. Like an
+ * {@code AsyncCallable}, the function is run non-transactionally and may
+ * use the provided {@code TransactionRunner} to run transactional tasks.
+ *
+ * @param <T> the type of the value the function is applied to
+ * @param <R> the type returned by the function
+ */
+public interface AsyncFunction<T, R> {
+
+    /**
+     * Applies this function to the given value.
+     *
+     * @param value the result of the previous stage
+     * @param transactionRunner a {@code TransactionRunner} used to start
+     *                          transactions
+     *
+     * @return the result of applying this function
+     *
+     * @throws Exception if there is any error applying this function
+     */
+    public R apply(T value, TransactionRunner transactionRunner)
+        throws Exception;
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2008-2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+
+/**
+ * An interface that may be implemented by an {@code AsyncRunnable} or
+ * {@code AsyncCallable} to choose the priority at which it is run. Tasks
+ * that do not implement this interface are run at
+ * {@code AsyncTaskPriority.NORMAL}.
+ */
+public interface AsyncPrioritizedTask {
+
+    /**
+     * Returns the priority at which this task should be run. This is
+     * called once, when the transaction that started the task commits.
+     *
+     * @return the {@code AsyncTaskPriority} of this task
+     */
+    public AsyncTaskPriority getPriority();
+
+}
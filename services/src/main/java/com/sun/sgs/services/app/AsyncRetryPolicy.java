@@ -0,0 +1,198 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * A policy that defines how an asynchronous task is re-tried when it
+ * fails, used through {@code AsyncTaskStage.withRetry}. Re-tries happen on
+ * the asynchronous side, without any transaction between attempts. Between
+ * attempts the task waits for an exponentially increasing backoff, with
+ * some random jitter so that many tasks failing at once do not all re-try
+ * at the same moment. A task does not hold a thread while it waits.
+ * <p>
+ * By default any {@code Exception} is considered retryable. Specific
+ * exception types may be given with {@code retryOn}, in which case only
+ * those types (and their subclasses) are re-tried. For more control,
+ * {@code isRetryable} may be overridden. An {@code Error} or an
+ * {@code InterruptedException} is never re-tried.
+ * <p>
+ * A policy should be fully configured before it is used, after which it
+ * may be shared by any number of tasks.
+ */
+public class AsyncRetryPolicy {
+
+    // the total number of attempts, including the first
+    private final int maxAttempts;
+
+    // the backoff before the first re-try, and the limit on the backoff
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    // the factor by which the backoff grows with each re-try
+    private final double multiplier;
+
+    // the fraction of each backoff that is randomized
+    private final double jitter;
+
+    // the retryable types, or empty if all exceptions are retryable
+    private final List<Class<? extends Throwable>> retryableTypes =
+        new ArrayList<Class<? extends Throwable>>();
+
+    private final Random random = new Random();
+
+    /**
+     * Creates an instance of {@code AsyncRetryPolicy} that doubles the
+     * backoff with each re-try and randomizes half of each backoff.
+     *
+     * @param maxAttempts the total number of attempts, including the first
+     * @param initialBackoff the backoff in milliseconds before the first
+     *                       re-try
+     * @param maxBackoff the maximum backoff in milliseconds
+     *
+     * @throws IllegalArgumentException if any of the parameters are invalid
+     */
+    public AsyncRetryPolicy(int maxAttempts, long initialBackoff,
+                            long maxBackoff)
+    {
+        this(maxAttempts, initialBackoff, maxBackoff, 2.0, 0.5);
+    }
+
+    /**
+     * Creates an instance of {@code AsyncRetryPolicy}.
+     *
+     * @param maxAttempts the total number of attempts, including the first
+     * @param initialBackoff the backoff in milliseconds before the first
+     *                       re-try
+     * @param maxBackoff the maximum backoff in milliseconds
+     * @param multiplier the factor by which the backoff grows with each
+     *                   re-try, which must be at least 1
+     * @param jitter the fraction of each backoff, between 0 and 1, that is
+     *               randomized
+     *
+     * @throws IllegalArgumentException if any of the parameters are invalid
+     */
+    public AsyncRetryPolicy(int maxAttempts, long initialBackoff,
+                            long maxBackoff, double multiplier, double jitter)
+    {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Attempts must be positive");
+        }
+        if ((initialBackoff < 0) || (maxBackoff < initialBackoff)) {
+            throw new IllegalArgumentException("Invalid backoff: " +
+                                               initialBackoff + ", " +
+                                               maxBackoff);
+        }
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("Multiplier must be at " +
+                                               "least 1");
+        }
+        if ((jitter < 0.0) || (jitter > 1.0)) {
+            throw new IllegalArgumentException("Jitter must be between " +
+                                               "0 and 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Adds an exception type that is re-tried by this policy. Once any
+     * type has been added, only failures of the added types are re-tried.
+     *
+     * @param type a retryable exception type
+     *
+     * @return this policy
+     */
+    public AsyncRetryPolicy retryOn(Class<? extends Throwable> type) {
+        if (type == null) {
+            throw new NullPointerException("Type must not be null");
+        }
+        retryableTypes.add(type);
+        return this;
+    }
+
+    /**
+     * Returns the total number of attempts, including the first.
+     *
+     * @return the maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns whether the given failure should be re-tried. Subclasses may
+     * override this method to provide their own rules, but should still
+     * call this method to exclude failures that are never re-tried.
+     *
+     * @param failure the reason that an attempt failed
+     *
+     * @return {@code true} if the task should be re-tried
+     */
+    public boolean isRetryable(Throwable failure) {
+        if ((failure instanceof Error) ||
+            (failure instanceof InterruptedException))
+        {
+            return false;
+        }
+        if (retryableTypes.isEmpty()) {
+            return true;
+        }
+        for (Class<? extends Throwable> type : retryableTypes) {
+            if (type.isInstance(failure)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time to wait before the given attempt.
+     *
+     * @param attempt the attempt about to be made, where the first re-try
+     *                is attempt 2
+     *
+     * @return the backoff in milliseconds
+     */
+    public long getBackoff(int attempt) {
+        double backoff = initialBackoff;
+        for (int i = 2; (i < attempt) && (backoff < maxBackoff); i++) {
+            backoff *= multiplier;
+        }
+        backoff = Math.min(backoff, maxBackoff);
+        double randomized;
+        synchronized (random) {
+            randomized = backoff * jitter * random.nextDouble();
+        }
+        return (long) (backoff * (1.0 - jitter) + randomized);
+    }
+
+}
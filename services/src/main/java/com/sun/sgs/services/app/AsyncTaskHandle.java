@@ -0,0 +1,97 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+import java.io.Serializable;
+
+
+/**
+ * A handle to an asynchronous task, used to cancel the task through
+ * {@code AsyncTaskManager.cancelTask}. Asynchronous tasks are run on the
+ * node where they were started, so a handle identifies both that node and
+ * the task. Handles are {@code Serializable} so that they may be stored
+ * and used in later transactions.
+ */
+public final class AsyncTaskHandle implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the node where the task was started
+    private final long nodeId;
+
+    // the task's identifier, unique on its node
+    private final long taskId;
+
+    /**
+     * Creates an instance of {@code AsyncTaskHandle}.
+     *
+     * @param nodeId the identifier of the node where the task was started
+     * @param taskId the identifier of the task on that node
+     */
+    public AsyncTaskHandle(long nodeId, long taskId) {
+        this.nodeId = nodeId;
+        this.taskId = taskId;
+    }
+
+    /**
+     * Returns the identifier of the node where the task was started.
+     *
+     * @return the node identifier
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the identifier of the task, which is unique on its node.
+     *
+     * @return the task identifier
+     */
+    public long getTaskId() {
+        return taskId;
+    }
+
+    /** {@inheritDoc} */
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof AsyncTaskHandle)) {
+            return false;
+        }
+        AsyncTaskHandle other = (AsyncTaskHandle) o;
+        return (nodeId == other.nodeId) && (taskId == other.taskId);
+    }
+
+    /** {@inheritDoc} */
+    public int hashCode() {
+        return (int) (nodeId ^ (nodeId >>> 32) ^ taskId ^ (taskId >>> 32));
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "AsyncTaskHandle[" + nodeId + ":" + taskId + "]";
+    }
+
+}
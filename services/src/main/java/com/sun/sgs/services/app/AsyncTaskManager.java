@@ -25,6 +25,8 @@ package com.sun.sgs.services.app;
 
 import com.sun.sgs.app.TaskRejectedException;
 
+import java.util.List;
+
 
 /**
  * A utility {@code Manager} that is used to run asynchronous, untimed,
@@ -42,6 +44,12 @@ import com.sun.sgs.app.TaskRejectedException;
  * retry the task. If the caller needs to guarentee that the task runs to
  * completion then an {@code AsynchTaskCallback} should be provided, and on
  * failure the task should be re-started.
+ * <p>
+ * Several asynchronous computations may be composed into a single chain
+ * by using the {@code AsyncTaskStage} returned by {@code startStage}, or by
+ * {@code allOf} and {@code anyOf}. The stages of the chain run one after
+ * another without any transactions between them, and only the final
+ * result is delivered to a callback.
  */
 public interface AsyncTaskManager {
 
@@ -86,4 +94,75 @@ public interface AsyncTaskManager {
     public <T> void startTask(AsyncCallable<T> c, AsyncTaskCallback<T> callback)
         throws TaskRejectedException;
 
+    /**
+     * Makes a best effort to run the given {@code AsyncCallable}
+     * asynchronously, returning a stage that may be used to compose further
+     * computations with its result. The {@code AsyncCallable} and any
+     * composed stages will start after the calling transaction commits.
+     *
+     * @param <T> the type that the {@code AsyncCallable} will return
+     * @param c an {@code AsyncCallable} to run non-transactionally after
+     *          the current transaction completes
+     *
+     * @return an {@code AsyncTaskStage} for the result of the callable
+     *
+     * @throws TaskRejectedException if the task is not accepted to run
+     */
+    public <T> AsyncTaskStage<T> startStage(AsyncCallable<T> c)
+        throws TaskRejectedException;
+
+    /**
+     * Makes a best effort to run all of the given {@code AsyncCallable}s
+     * asynchronously and in parallel, returning a stage for the list of
+     * their results. The results are in the same order as the callables.
+     * If any of the callables fails then the stage fails with the first
+     * reported failure.
+     *
+     * @param <T> the type that the {@code AsyncCallable}s will return
+     * @param callables the {@code AsyncCallable}s to run non-transactionally
+     *                  after the current transaction completes
+     *
+     * @return an {@code AsyncTaskStage} for the results of the callables
+     *
+     * @throws IllegalArgumentException if {@code callables} is empty
+     * @throws TaskRejectedException if the task is not accepted to run
+     */
+    public <T> AsyncTaskStage<List<T>>
+        allOf(List<? extends AsyncCallable<? extends T>> callables)
+        throws TaskRejectedException;
+
+    /**
+     * Makes a best effort to run all of the given {@code AsyncCallable}s
+     * asynchronously and in parallel, returning a stage for the first
+     * result to be returned successfully. If all of the callables fail then
+     * the stage fails with the last reported failure.
+     *
+     * @param <T> the type that the {@code AsyncCallable}s will return
+     * @param callables the {@code AsyncCallable}s to run non-transactionally
+     *                  after the current transaction completes
+     *
+     * @return an {@code AsyncTaskStage} for the first successful result
+     *
+     * @throws IllegalArgumentException if {@code callables} is empty
+     * @throws TaskRejectedException if the task is not accepted to run
+     */
+    public <T> AsyncTaskStage<T>
+        anyOf(List<? extends AsyncCallable<? extends T>> callables)
+        throws TaskRejectedException;
+
+    /**
+     * Cancels the task identified by the given handle. The cancellation
+     * takes effect when the calling transaction commits. If the task has
+     * not started it will not be run, and if it is running then the thread
+     * running it is interrupted. Either way, its callback is notified with
+     * a {@code java.util.concurrent.CancellationException}. Tasks can only
+     * be cancelled on the node where they were started.
+     *
+     * @param handle the {@code AsyncTaskHandle} for the task
+     *
+     * @return {@code true} if the task is known to this node and has not
+     *         yet completed, {@code false} otherwise
+     */
+    public boolean cancelTask(AsyncTaskHandle handle);
+
 }
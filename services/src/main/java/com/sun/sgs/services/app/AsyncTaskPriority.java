@@ -0,0 +1,49 @@
+/*
+ * Copyright 2008-2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+
+/**
+ * The priority classes for asynchronous tasks. When tasks are waiting for
+ * a thread, a task of a higher priority is started ahead of tasks of a
+ * lower priority, so that latency-sensitive work is not held up by bulk
+ * work. Tasks that have waited long enough are started regardless of
+ * priority, so a steady stream of higher priority tasks cannot starve
+ * lower priority ones.
+ *
+ * @see AsyncPrioritizedTask
+ * @see AsyncTaskStage#withPriority
+ */
+public enum AsyncTaskPriority {
+
+    /** The priority for latency-sensitive tasks. */
+    HIGH,
+
+    /** The priority for tasks that do not specify one. */
+    NORMAL,
+
+    /** The priority for bulk tasks that are not sensitive to latency. */
+    LOW
+
+}
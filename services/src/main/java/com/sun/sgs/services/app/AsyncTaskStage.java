@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.app;
+
+
+/**
+ * A stage in a chain of asynchronous computations, returned by the
+ * {@code AsyncTaskManager} when a task is started. Stages are composed in
+ * the transaction that started the task, and the whole chain runs
+ * non-transactionally after that transaction commits. Each stage runs as
+ * soon as the previous stage completes, on the same side of the
+ * transaction boundary, so no transaction is needed between stages. Only
+ * the final result is delivered, in a single transaction, to the
+ * {@code AsyncTaskCallback} provided to {@code thenNotify}. If any stage
+ * fails then none of the later stages are run and the callback is
+ * notified of the failure.
+ * <p>
+ * A stage may only be continued once, since the result of each stage is
+ * passed to exactly one following stage. Calling any of the methods on a
+ * stage that has already been continued, or outside of the transaction
+ * that started the task, results in an {@code IllegalStateException}. If
+ * {@code thenNotify} is never called then the chain is still run, but its
+ * result is discarded.
+ * <p>
+ * The whole chain may be given a timeout, and may be cancelled through the
+ * handle returned by {@code getHandle}. In either case the thread running
+ * the chain is interrupted and the callback is notified of the failure.
+ *
+ * @param <T> the type of the result of this stage
+ */
+public interface AsyncTaskStage<T> {
+
+    /**
+     * Returns a new stage that applies the given function to the result of
+     * this stage.
+     *
+     * @param <R> the type returned by the function
+     * @param function the function to apply to the result of this stage
+     *
+     * @return the new stage
+     *
+     * @throws IllegalStateException if this stage has already been continued
+     *                               or the calling transaction is not the
+     *                               one that started the task
+     */
+    public <R> AsyncTaskStage<R> thenApply(AsyncFunction<? super T, R>
+                                           function);
+
+    /**
+     * Returns a new stage that applies the given function to the result of
+     * this stage, and then calls the {@code AsyncCallable} that it returns.
+     *
+     * @param <R> the type returned by the composed {@code AsyncCallable}
+     * @param function the function used to create the next callable from
+     *                 the result of this stage
+     *
+     * @return the new stage
+     *
+     * @throws IllegalStateException if this stage has already been continued
+     *                               or the calling transaction is not the
+     *                               one that started the task
+     */
+    public <R> AsyncTaskStage<R> thenCompose(AsyncFunction<? super T,
+                                             AsyncCallable<R>> function);
+
+    /**
+     * Returns a new stage with the same result as this stage, where a
+     * failure of the chain up to and including this stage is re-tried as
+     * defined by the given policy. Re-tries are made without any
+     * transaction between attempts, and only the final outcome is passed
+     * on to later stages.
+     *
+     * @param policy the {@code AsyncRetryPolicy} to apply
+     *
+     * @return the new stage
+     *
+     * @throws IllegalStateException if this stage has already been continued
+     *                               or the calling transaction is not the
+     *                               one that started the task
+     */
+    public AsyncTaskStage<T> withRetry(AsyncRetryPolicy policy);
+
+    /**
+     * Provides the callback that is notified, in a new transaction, with
+     * the result of this stage or the reason that the chain failed. This
+     * ends the chain. The callback follows the same rules as callbacks
+     * provided to {@code AsyncTaskManager.startTask}.
+     *
+     * @param callback the {@code AsyncTaskCallback} to notify of the result
+     *
+     * @throws IllegalStateException if this stage has already been continued
+     *                               or the calling transaction is not the
+     *                               one that started the task
+     */
+    public void thenNotify(AsyncTaskCallback<T> callback);
+
+    /**
+     * Sets the maximum time that the chain may run, measured from when it
+     * starts running. If the chain has not completed in this time then the
+     * thread running it is interrupted and the callback is notified with a
+     * {@code java.util.concurrent.TimeoutException}. Any result that the
+     * chain returns after this point is discarded. This does not continue
+     * the stage.
+     *
+     * @param timeout the timeout in milliseconds, or 0 for no timeout
+     *
+     * @return this stage
+     *
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if the calling transaction is not the
+     *                               one that started the task
+     */
+    public AsyncTaskStage<T> withTimeout(long timeout);
+
+    /**
+     * Sets the priority at which the chain is run. This replaces any
+     * priority given by the first callable of the chain through
+     * {@code AsyncPrioritizedTask}. This does not continue the stage.
+     *
+     * @param priority the {@code AsyncTaskPriority} of the chain
+     *
+     * @return this stage
+     *
+     * @throws IllegalStateException if the calling transaction is not the
+     *                               one that started the task
+     */
+    public AsyncTaskStage<T> withPriority(AsyncTaskPriority priority);
+
+    /**
+     * Returns a handle that may be used to cancel the chain. This does not
+     * continue the stage.
+     *
+     * @return an {@code AsyncTaskHandle} for the chain
+     *
+     * @throws IllegalStateException if the calling transaction is not the
+     *                               one that started the task
+     */
+    public AsyncTaskHandle getHandle();
+
+}
@@ -43,9 +43,12 @@ package com.sun.sgs.services.app;
  * some numeric identifier. This allows application code to tag a given
  * transaction with multiple identifiers that capture something specific
  * about the application logic (i.e. game-specific events). A tag may
- * optionally be applied with some un-typed value to capture some state
- * associated with the event. For now, a given tag may only be used once
- * in a given transaction.
+ * optionally be applied with a value to capture some state associated
+ * with the event. Values of type {@code long}, {@code double} or
+ * {@code CharSequence} should be applied through the typed methods, which
+ * store them without boxing and let listeners read them back by type;
+ * any other value may be applied as an un-typed object. For now, a given
+ * tag may only be used once in a given transaction.
  */
 public interface TagManager {
 
@@ -73,4 +76,41 @@ public interface TagManager {
      */
     boolean tagTask(long tag, Object tagValue);
 
+    /**
+     * Tags the current task with the given identifier, associating the
+     * given {@code long} value with this tag.
+     *
+     * @param tag the tag identifier
+     * @param tagValue the value for the tag
+     *
+     * @return {@code true} if the tag was applied, {@code false} if the
+     *         identifier has already been used in this task
+     */
+    boolean tagTask(long tag, long tagValue);
+
+    /**
+     * Tags the current task with the given identifier, associating the
+     * given {@code double} value with this tag.
+     *
+     * @param tag the tag identifier
+     * @param tagValue the value for the tag
+     *
+     * @return {@code true} if the tag was applied, {@code false} if the
+     *         identifier has already been used in this task
+     */
+    boolean tagTask(long tag, double tagValue);
+
+    /**
+     * Tags the current task with the given identifier, associating the
+     * given characters with this tag. The characters are copied when this
+     * method is called, so a mutable sequence may be re-used afterwards.
+     *
+     * @param tag the tag identifier
+     * @param tagValue the value for the tag, or {@code null} for no value
+     *
+     * @return {@code true} if the tag was applied, {@code false} if the
+     *         identifier has already been used in this task
+     */
+    boolean tagTask(long tag, CharSequence tagValue);
+
 }
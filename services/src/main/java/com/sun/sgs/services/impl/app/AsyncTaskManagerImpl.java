@@ -22,7 +22,11 @@ package com.sun.sgs.services.impl.app;
 import com.sun.sgs.services.app.AsyncCallable;
 import com.sun.sgs.services.app.AsyncRunnable;
 import com.sun.sgs.services.app.AsyncTaskCallback;
+import com.sun.sgs.services.app.AsyncTaskHandle;
 import com.sun.sgs.services.app.AsyncTaskManager;
+import com.sun.sgs.services.app.AsyncTaskStage;
+
+import java.util.List;
 
 
 /**
@@ -53,4 +57,28 @@ public class AsyncTaskManagerImpl implements AsyncTaskManager {
         backingManager.startTask(c, callback);
     }
 
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<T> startStage(AsyncCallable<T> c) {
+        return backingManager.startStage(c);
+    }
+
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<List<T>>
+        allOf(List<? extends AsyncCallable<? extends T>> callables)
+    {
+        return backingManager.allOf(callables);
+    }
+
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<T>
+        anyOf(List<? extends AsyncCallable<? extends T>> callables)
+    {
+        return backingManager.anyOf(callables);
+    }
+
+    /** {@inheritDoc} */
+    public boolean cancelTask(AsyncTaskHandle handle) {
+        return backingManager.cancelTask(handle);
+    }
+
 }
@@ -47,4 +47,19 @@ public class TagManagerImpl implements TagManager {
         return backingManager.tagTask(tag, tagValue);
     }
 
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, long tagValue) {
+        return backingManager.tagTask(tag, tagValue);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, double tagValue) {
+        return backingManager.tagTask(tag, tagValue);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, CharSequence tagValue) {
+        return backingManager.tagTask(tag, tagValue);
+    }
+
 }
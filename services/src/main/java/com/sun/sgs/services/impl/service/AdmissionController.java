@@ -0,0 +1,383 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import com.sun.sgs.app.TaskRejectedException;
+
+import com.sun.sgs.auth.Identity;
+
+import com.sun.sgs.kernel.KernelRunnable;
+import com.sun.sgs.kernel.TaskReservation;
+
+import com.sun.sgs.services.app.AsyncPrioritizedTask;
+import com.sun.sgs.services.app.AsyncTaskPriority;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An {@code AsyncTaskExecutor} that limits how many tasks may be in flight
+ * on the local node, and for each owner, before handing tasks to a backing
+ * executor. A task is in flight from the time it is admitted until it
+ * finishes running.
+ * <p>
+ * In {@code REJECT} mode, a task that would exceed a limit is rejected
+ * right away with a {@code TaskRejectedException}, so the calling
+ * transaction learns of it. In {@code DEFER} mode, tasks are always
+ * accepted while the calling transaction is active, and the limits are
+ * applied when it commits: a task that would exceed a limit waits in a
+ * backlog until enough in-flight tasks have finished. The backlog itself
+ * is bounded, and once it is full new tasks are rejected.
+ * <p>
+ * In {@code DEFER} mode a task only takes space in the backing executor
+ * once it is admitted, so deferred tasks never use up the backing
+ * executor's capacity. An admitted task that the backing executor has no
+ * capacity for stays deferred until another task finishes. The backlog is
+ * kept as a queue for each owner, and owners with space take turns
+ * starting their deferred tasks, so one owner over its limit does not
+ * hold up the others.
+ * <p>
+ * Tasks spawned through {@code tryExecute} by a task that is already in
+ * flight are not counted, since their parent runs any of them that have
+ * not started before it waits for them.
+ */
+class AdmissionController implements AsyncTaskExecutor {
+
+    /** The ways of handling a task that would exceed a limit. */
+    enum Mode {
+        /** Reject the task while the calling transaction is active. */
+        REJECT,
+        /** Defer the task until there is space for it. */
+        DEFER
+    }
+
+    // the executor that runs admitted tasks
+    private final AsyncTaskExecutor backingExecutor;
+
+    // the limits, where 0 means no limit
+    private final int maxTasks;
+    private final int maxTasksPerOwner;
+    private final int maxDeferred;
+
+    private final Mode mode;
+
+    // the in-flight counts and backlog, all guarded by this instance
+    private int inFlight = 0;
+    private final Map<Identity,Integer> inFlightByOwner =
+        new HashMap<Identity,Integer>();
+    private final Map<Identity,LinkedList<AdmissionReservation>> deferred =
+        new HashMap<Identity,LinkedList<AdmissionReservation>>();
+    private int deferredTasks = 0;
+    // the owners with deferred tasks that are under their own limit, in
+    // the order that they take turns starting a task
+    private final LinkedHashSet<Identity> readyOwners =
+        new LinkedHashSet<Identity>();
+
+    // statistics
+    private final AtomicLong admittedCount = new AtomicLong(0);
+    private final AtomicLong deferredCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    /**
+     * Creates an instance of {@code AdmissionController}.
+     *
+     * @param backingExecutor the executor that runs admitted tasks
+     * @param mode how to handle a task that would exceed a limit
+     * @param maxTasks the maximum tasks in flight on this node, or 0 for
+     *                 no limit
+     * @param maxTasksPerOwner the maximum tasks in flight for any one
+     *                         owner, or 0 for no limit
+     * @param maxDeferred the maximum number of deferred tasks
+     *
+     * @throws IllegalArgumentException if any limit is negative
+     */
+    AdmissionController(AsyncTaskExecutor backingExecutor, Mode mode,
+                        int maxTasks, int maxTasksPerOwner, int maxDeferred)
+    {
+        if ((maxTasks < 0) || (maxTasksPerOwner < 0) || (maxDeferred < 0)) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        this.backingExecutor = backingExecutor;
+        this.mode = mode;
+        this.maxTasks = maxTasks;
+        this.maxTasksPerOwner = maxTasksPerOwner;
+        this.maxDeferred = maxDeferred;
+    }
+
+    /** {@inheritDoc} */
+    public TaskReservation reserveTask(KernelRunnable task, Identity owner) {
+        if (mode == Mode.DEFER) {
+            // the backing executor is only used once the task is admitted
+            synchronized (this) {
+                if ((deferredTasks >= maxDeferred) && (! hasSpace(owner))) {
+                    rejectedCount.incrementAndGet();
+                    throw new TaskRejectedException("Too many deferred " +
+                                                    "asynchronous tasks");
+                }
+            }
+            return new AdmissionReservation(task, owner);
+        }
+
+        if (! tryAdmit(owner)) {
+            rejectedCount.incrementAndGet();
+            throw new TaskRejectedException("Too many asynchronous " +
+                                            "tasks in flight");
+        }
+        AdmissionReservation reservation =
+            new AdmissionReservation(task, owner);
+        reservation.admitted = true;
+        try {
+            reservation.backingReservation =
+                backingExecutor.reserveTask(reservation, owner);
+        } catch (RuntimeException re) {
+            release(owner);
+            if (re instanceof TaskRejectedException) {
+                rejectedCount.incrementAndGet();
+            }
+            throw re;
+        }
+        return reservation;
+    }
+
+    /** {@inheritDoc} */
+    public boolean tryExecute(KernelRunnable task, Identity owner) {
+        return backingExecutor.tryExecute(task, owner);
+    }
+
+    /** {@inheritDoc} */
+    public int getQueuedTasks() {
+        return backingExecutor.getQueuedTasks();
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        synchronized (this) {
+            deferred.clear();
+            readyOwners.clear();
+            deferredTasks = 0;
+        }
+        backingExecutor.shutdown();
+    }
+
+    /** Returns the number of tasks in flight on this node. */
+    synchronized int getInFlightTasks() {
+        return inFlight;
+    }
+
+    /** Returns the number of tasks waiting to be admitted. */
+    synchronized int getDeferredTasks() {
+        return deferredTasks;
+    }
+
+    /** Returns the total number of tasks admitted. */
+    long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /** Returns the total number of tasks that have been deferred. */
+    long getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    /** Returns the total number of tasks that have been rejected. */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /* Private methods, all of which must be called holding the lock
+     * unless noted otherwise. */
+
+    /** Returns whether the owner may have another task in flight. */
+    private boolean hasSpace(Identity owner) {
+        if ((maxTasks > 0) && (inFlight >= maxTasks)) {
+            return false;
+        }
+        return ownerHasSpace(owner);
+    }
+
+    /** Returns whether the owner is under its own limit. */
+    private boolean ownerHasSpace(Identity owner) {
+        if (maxTasksPerOwner > 0) {
+            Integer count = inFlightByOwner.get(owner);
+            if ((count != null) && (count >= maxTasksPerOwner)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Counts a task for the owner as in flight. */
+    private void admit(Identity owner) {
+        inFlight++;
+        Integer count = inFlightByOwner.get(owner);
+        inFlightByOwner.put(owner, (count == null) ? 1 : count + 1);
+        admittedCount.incrementAndGet();
+    }
+
+    /** Admits a task for the owner if there is space. Takes the lock. */
+    private synchronized boolean tryAdmit(Identity owner) {
+        if (! hasSpace(owner)) {
+            return false;
+        }
+        admit(owner);
+        return true;
+    }
+
+    /**
+     * Admits a deferred-mode task and hands it to the backing executor,
+     * returning {@code false} if the executor has no capacity for it.
+     * The task cannot finish, and so release its space, until the lock is
+     * given up.
+     */
+    private boolean start(AdmissionReservation r) {
+        if (! backingExecutor.tryExecute(r, r.owner)) {
+            return false;
+        }
+        admit(r.owner);
+        r.admitted = true;
+        return true;
+    }
+
+    /** Adds a task to the end of its owner's backlog. */
+    private void defer(AdmissionReservation r) {
+        LinkedList<AdmissionReservation> queue = deferred.get(r.owner);
+        if (queue == null) {
+            queue = new LinkedList<AdmissionReservation>();
+            deferred.put(r.owner, queue);
+            if (ownerHasSpace(r.owner)) {
+                readyOwners.add(r.owner);
+            }
+        }
+        queue.add(r);
+        deferredTasks++;
+        deferredCount.incrementAndGet();
+    }
+
+    /**
+     * Releases an in-flight task for the owner, and then starts any
+     * deferred tasks that now fit. Takes the lock.
+     */
+    private synchronized void release(Identity owner) {
+        inFlight--;
+        int count = inFlightByOwner.get(owner) - 1;
+        if (count == 0) {
+            inFlightByOwner.remove(owner);
+        } else {
+            inFlightByOwner.put(owner, count);
+        }
+        // the owner is now under its limit, so may start its own backlog
+        if (deferred.containsKey(owner)) {
+            readyOwners.add(owner);
+        }
+
+        // owners take turns starting their oldest deferred task, and go
+        // to the back of the line if they still have space for more
+        while ((! readyOwners.isEmpty()) &&
+               ((maxTasks == 0) || (inFlight < maxTasks)))
+        {
+            Identity next = readyOwners.iterator().next();
+            LinkedList<AdmissionReservation> queue = deferred.get(next);
+            if (! start(queue.getFirst())) {
+                // try again once another task has finished
+                break;
+            }
+            readyOwners.remove(next);
+            queue.removeFirst();
+            deferredTasks--;
+            if (queue.isEmpty()) {
+                deferred.remove(next);
+            } else if (ownerHasSpace(next)) {
+                readyOwners.add(next);
+            }
+        }
+    }
+
+    /** A reservation that counts its task while the task is in flight. */
+    private class AdmissionReservation
+        implements TaskReservation, KernelRunnable, AsyncPrioritizedTask
+    {
+        private final KernelRunnable task;
+        final Identity owner;
+        // whether this task has been admitted, guarded by the controller
+        boolean admitted = false;
+        // the space held in the backing executor, only used in REJECT mode
+        TaskReservation backingReservation = null;
+        // whether the space held by this task has been given back, since
+        // the backing executor may run the task more than once
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        AdmissionReservation(KernelRunnable task, Identity owner) {
+            this.task = task;
+            this.owner = owner;
+        }
+        /** {@inheritDoc} */
+        public void cancel() {
+            if (backingReservation != null) {
+                backingReservation.cancel();
+            }
+            if (admitted) {
+                finish();
+            }
+        }
+        /** {@inheritDoc} */
+        public void use() {
+            if (backingReservation != null) {
+                backingReservation.use();
+                return;
+            }
+            synchronized (AdmissionController.this) {
+                // tasks queue behind any of the owner's deferred tasks
+                if (deferred.containsKey(owner) || (! hasSpace(owner)) ||
+                    (! start(this)))
+                {
+                    defer(this);
+                }
+            }
+        }
+        /** {@inheritDoc} */
+        public String getBaseTaskType() {
+            return task.getBaseTaskType();
+        }
+        /** {@inheritDoc} */
+        public AsyncTaskPriority getPriority() {
+            return PooledTaskExecutor.priorityOf(task);
+        }
+        /** {@inheritDoc} */
+        public void run() throws Exception {
+            try {
+                task.run();
+            } finally {
+                finish();
+            }
+        }
+        /** Gives back the space held by this task, at most once. */
+        private void finish() {
+            if (released.compareAndSet(false, true)) {
+                release(owner);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import com.sun.sgs.app.TaskRejectedException;
+
+import com.sun.sgs.auth.Identity;
+
+import com.sun.sgs.kernel.KernelRunnable;
+import com.sun.sgs.kernel.TaskReservation;
+
+
+/**
+ * The interface used by {@code AsyncTaskService} to hand off
+ * non-transactional work. Tasks are reserved while the calling transaction
+ * is still active, so that a rejection can be reported to the caller, and
+ * the reservation is then used or cancelled when the transaction completes.
+ */
+interface AsyncTaskExecutor {
+
+    /**
+     * Reserves space to run the given task on behalf of the given owner.
+     *
+     * @param task the task to run
+     * @param owner the owner of the task
+     *
+     * @return a {@code TaskReservation} used to start or cancel the task
+     *
+     * @throws TaskRejectedException if the task cannot be accepted
+     */
+    TaskReservation reserveTask(KernelRunnable task, Identity owner)
+        throws TaskRejectedException;
+
+    /**
+     * Tries to run the given task right away, without a reservation. This
+     * is used for work spawned by a task that is already running, which
+     * can always fall back to running the work itself.
+     *
+     * @param task the task to run
+     * @param owner the owner of the task
+     *
+     * @return {@code true} if the task was accepted, or {@code false} if
+     *         there is currently no capacity to run it
+     */
+    boolean tryExecute(KernelRunnable task, Identity owner);
+
+    /**
+     * Returns the number of tasks that have been started but are waiting
+     * for a thread to run them.
+     *
+     * @return the number of waiting tasks, or {@code -1} if not known
+     */
+    int getQueuedTasks();
+
+    /**
+     * Stops accepting tasks and releases any resources held by this
+     * executor. Tasks that are currently running may be interrupted.
+     */
+    void shutdown();
+
+}
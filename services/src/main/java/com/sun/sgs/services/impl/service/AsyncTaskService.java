@@ -28,9 +28,15 @@ import com.sun.sgs.app.TaskRejectedException;
 import com.sun.sgs.auth.Identity;
 
 import com.sun.sgs.services.app.AsyncCallable;
+import com.sun.sgs.services.app.AsyncFunction;
+import com.sun.sgs.services.app.AsyncPrioritizedTask;
+import com.sun.sgs.services.app.AsyncRetryPolicy;
 import com.sun.sgs.services.app.AsyncRunnable;
 import com.sun.sgs.services.app.AsyncTaskCallback;
+import com.sun.sgs.services.app.AsyncTaskHandle;
 import com.sun.sgs.services.app.AsyncTaskManager;
+import com.sun.sgs.services.app.AsyncTaskPriority;
+import com.sun.sgs.services.app.AsyncTaskStage;
 import com.sun.sgs.services.app.TransactionRunner;
 
 import com.sun.sgs.impl.util.TransactionContext;
@@ -52,18 +58,250 @@ import com.sun.sgs.service.Transaction;
 import com.sun.sgs.service.TransactionProxy;
 import com.sun.sgs.service.WatchdogService;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import java.lang.management.ManagementFactory;
+
+import java.math.BigInteger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-/** Utility Service for running asynchronous tasks and calling back. */
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Utility Service for running asynchronous tasks and calling back.
+ * <p>
+ * By default, asynchronous tasks are run on a dedicated, bounded pool of
+ * threads so that long-running or blocking tasks do not compete with
+ * transactional tasks for the kernel's threads. The pool is configured
+ * with the {@code CORE_THREADS_PROPERTY}, {@code MAX_THREADS_PROPERTY},
+ * {@code QUEUE_SIZE_PROPERTY} and {@code KEEP_ALIVE_PROPERTY} properties.
+ * When the pool and its queue are full, new tasks are rejected with a
+ * {@code TaskRejectedException}. Tasks waiting for a pool thread are
+ * started in order of {@code AsyncTaskPriority}, with waiting tasks moving
+ * ahead of newer, higher priority tasks after the delay defined by the
+ * {@code PRIORITY_AGING_PROPERTY}. Setting the {@code EXECUTION_MODE_PROPERTY}
+ * to {@code EXECUTION_MODE_SCHEDULER} instead runs tasks through the
+ * kernel's {@code TaskScheduler}.
+ * <p>
+ * Setting the {@code EXECUTION_MODE_PROPERTY} to
+ * {@code EXECUTION_MODE_VIRTUAL} runs each task on its own virtual thread,
+ * which suits tasks that mostly block on network or disk access. Only the
+ * number of outstanding tasks is bounded in this mode, as defined by the
+ * {@code VIRTUAL_MAX_TASKS_PROPERTY}. If the JVM does not support virtual
+ * threads then the service falls back to the thread pool.
+ * <p>
+ * By default each completed {@code AsyncCallable} notifies its callback in
+ * a separate transaction. When many small tasks complete at once, the
+ * results for the same owner may instead be delivered together, with
+ * several callbacks notified in a single transaction. This is enabled by
+ * setting the {@code CALLBACK_BATCH_SIZE_PROPERTY} to a value larger than
+ * one. A batch is delivered when it reaches that size, or when the time
+ * defined by the {@code CALLBACK_BATCH_DELAY_PROPERTY} has passed since
+ * its first result was added.
+ * <p>
+ * Callbacks are normally kept in the data store while their task runs, so
+ * that they can be notified if this node fails. Setting the
+ * {@code LOCAL_CALLBACKS_PROPERTY} to "true" instead keeps each callback in
+ * a node-local registry: a callback that implements {@code ManagedObject}
+ * is kept as its object identifier, and any other callback is kept as
+ * its serialized form. This avoids writing, reading and removing a binding
+ * for each task, but callbacks kept this way are not notified if the node
+ * fails before the task completes.
+ * <p>
+ * Callables may be given a timeout, either for each task through its
+ * {@code AsyncTaskStage} or for all tasks through the
+ * {@code TASK_TIMEOUT_PROPERTY}. A task that times out or is cancelled is
+ * interrupted, and its callback is notified of the failure and released
+ * right away. Note that the task's thread is only freed once the task
+ * responds to the interrupt. A task that is backing off before a re-try
+ * holds no thread, and is not counted as in flight, while it waits.
+ * <p>
+ * The number of tasks in flight may be limited for the whole node with
+ * the {@code ADMISSION_MAX_TASKS_PROPERTY}, and for each owner with the
+ * {@code ADMISSION_MAX_TASKS_PER_OWNER_PROPERTY}. By default a task that
+ * would exceed a limit is rejected with a {@code TaskRejectedException}.
+ * Setting the {@code ADMISSION_MODE_PROPERTY} to {@code ADMISSION_MODE_DEFER}
+ * instead accepts the task and starts it once enough in-flight tasks have
+ * finished, up to the number of waiting tasks defined by the
+ * {@code ADMISSION_MAX_DEFERRED_PROPERTY}. The current counts are
+ * available through the {@link AsyncTaskServiceMXBean}.
+ */
 public class AsyncTaskService implements Service, AsyncTaskManager {
 
+    private static final String NAME = AsyncTaskService.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    /** The property used to define how asynchronous tasks are run. */
+    public static final String EXECUTION_MODE_PROPERTY =
+        NAME + ".execution.mode";
+
+    /** Execution mode that runs tasks on the service's own thread pool. */
+    public static final String EXECUTION_MODE_POOL = "pool";
+
+    /** Execution mode that runs each task on its own virtual thread. */
+    public static final String EXECUTION_MODE_VIRTUAL = "virtual";
+
+    /** Execution mode that runs tasks through the kernel's scheduler. */
+    public static final String EXECUTION_MODE_SCHEDULER = "scheduler";
+
+    /** The default execution mode. */
+    public static final String DEFAULT_EXECUTION_MODE = EXECUTION_MODE_POOL;
+
+    /** The property used to define the number of core pool threads. */
+    public static final String CORE_THREADS_PROPERTY =
+        NAME + ".pool.core.threads";
+
+    /** The default number of core pool threads. */
+    public static final String DEFAULT_CORE_THREADS = "4";
+
+    /** The property used to define the maximum number of pool threads. */
+    public static final String MAX_THREADS_PROPERTY =
+        NAME + ".pool.max.threads";
+
+    /** The default maximum number of pool threads. */
+    public static final String DEFAULT_MAX_THREADS = "16";
+
+    /** The property used to define how many tasks may wait for a thread. */
+    public static final String QUEUE_SIZE_PROPERTY = NAME + ".pool.queue.size";
+
+    /** The default pool queue size. */
+    public static final String DEFAULT_QUEUE_SIZE = "1024";
+
+    /** The property used to define the pool keep-alive in milliseconds. */
+    public static final String KEEP_ALIVE_PROPERTY = NAME + ".pool.keep.alive";
+
+    /** The default pool keep-alive time. */
+    public static final String DEFAULT_KEEP_ALIVE = "60000";
+
+    /** The property used to define the pool priority aging delay in ms. */
+    public static final String PRIORITY_AGING_PROPERTY =
+        NAME + ".pool.priority.aging";
+
+    /** The default pool priority aging delay. */
+    public static final String DEFAULT_PRIORITY_AGING = "1000";
+
+    /** The property used to define the maximum outstanding virtual tasks. */
+    public static final String VIRTUAL_MAX_TASKS_PROPERTY =
+        NAME + ".virtual.max.tasks";
+
+    /** The default maximum number of outstanding virtual thread tasks. */
+    public static final String DEFAULT_VIRTUAL_MAX_TASKS = "10000";
+
+    /** The property used to define the callback batch size. */
+    public static final String CALLBACK_BATCH_SIZE_PROPERTY =
+        NAME + ".callback.batch.size";
+
+    /** The default callback batch size, which disables batching. */
+    public static final String DEFAULT_CALLBACK_BATCH_SIZE = "1";
+
+    /** The property used to define the callback batch delay in ms. */
+    public static final String CALLBACK_BATCH_DELAY_PROPERTY =
+        NAME + ".callback.batch.delay";
+
+    /** The default callback batch delay. */
+    public static final String DEFAULT_CALLBACK_BATCH_DELAY = "10";
+
+    /** The property used to specify if callbacks are kept node-local. */
+    public static final String LOCAL_CALLBACKS_PROPERTY =
+        NAME + ".callback.local";
+
+    /** The default value for the callback.local property. */
+    public static final String DEFAULT_LOCAL_CALLBACKS = "false";
+
+    /** The property used to define the default callable timeout in ms. */
+    public static final String TASK_TIMEOUT_PROPERTY = NAME + ".task.timeout";
+
+    /** The default callable timeout, which means no timeout. */
+    public static final String DEFAULT_TASK_TIMEOUT = "0";
+
+    /** The property used to define the callbacks recovered per transaction. */
+    public static final String RECOVERY_CHUNK_SIZE_PROPERTY =
+        NAME + ".recovery.chunk.size";
+
+    /** The default recovery chunk size. */
+    public static final String DEFAULT_RECOVERY_CHUNK_SIZE = "100";
+
+    /** The property used to define how many threads recover callbacks. */
+    public static final String RECOVERY_THREADS_PROPERTY =
+        NAME + ".recovery.threads";
+
+    /** The default number of recovery threads. */
+    public static final String DEFAULT_RECOVERY_THREADS = "4";
+
+    /** The property used to define how tasks over a limit are handled. */
+    public static final String ADMISSION_MODE_PROPERTY =
+        NAME + ".admission.mode";
+
+    /** Admission mode that rejects tasks over a limit. */
+    public static final String ADMISSION_MODE_REJECT = "reject";
+
+    /** Admission mode that defers tasks over a limit. */
+    public static final String ADMISSION_MODE_DEFER = "defer";
+
+    /** The default admission mode. */
+    public static final String DEFAULT_ADMISSION_MODE = ADMISSION_MODE_REJECT;
+
+    /** The property used to define the maximum in-flight tasks per node. */
+    public static final String ADMISSION_MAX_TASKS_PROPERTY =
+        NAME + ".admission.max.tasks";
+
+    /** The default maximum in-flight tasks per node, which means no limit. */
+    public static final String DEFAULT_ADMISSION_MAX_TASKS = "0";
+
+    /** The property used to define the maximum in-flight tasks per owner. */
+    public static final String ADMISSION_MAX_TASKS_PER_OWNER_PROPERTY =
+        NAME + ".admission.max.tasks.per.owner";
+
+    /** The default maximum in-flight tasks per owner, meaning no limit. */
+    public static final String DEFAULT_ADMISSION_MAX_TASKS_PER_OWNER = "0";
+
+    /** The property used to define the maximum number of deferred tasks. */
+    public static final String ADMISSION_MAX_DEFERRED_PROPERTY =
+        NAME + ".admission.max.deferred";
+
+    /** The default maximum number of deferred tasks. */
+    public static final String DEFAULT_ADMISSION_MAX_DEFERRED = "10000";
+
+    // the states of a callable task
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
     private final TransactionContextFactory<TxnState> ctxFactory;
 
     private static TransactionProxy transactionProxy;
@@ -73,15 +311,48 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
     private final DataService dataService;
     private final TaskService taskService;
 
-    private final TransactionRunner transactionRunner;
+    private final AsyncTaskExecutor executor;
+
+    // the admission controller in front of the executor
+    private final AdmissionController admission;
+
+    // the name of the management bean, set once it has been registered
+    private ObjectName mxbeanName = null;
+
+    // the timer used for delayed work
+    private final ScheduledExecutorService timer;
+
+    // the batcher for callback notifications, or null if not batching
+    private final CallbackBatcher callbackBatcher;
+
+    // the node-local callbacks, or null if callbacks are kept in the store
+    private final ConcurrentHashMap<String,LocalCallback<?>> localCallbacks;
+
+    // the default timeout for callables, or 0 for no timeout
+    private final long defaultTimeout;
+
+    // the number of callbacks recovered per transaction, and the number of
+    // threads used to recover them
+    private final int recoveryChunkSize;
+    private final int recoveryThreads;
+
+    // the callables that may be cancelled, keyed by task identifier
+    private final ConcurrentHashMap<Long,CallableKernelRunner<?>> trackedTasks =
+        new ConcurrentHashMap<Long,CallableKernelRunner<?>>();
 
     private final Identity appIdentity;
 
     private static final String CALLBACK_NS_ROOT =
         AsyncTaskService.class.getName() + ".";
 
+    // the number of shards that callback names are spread across, which
+    // must be the same on every node so that any node can recover them
+    private static final int CALLBACK_SHARDS = 16;
+
     private final String namespace;
+    private final long nodeId;
     private final AtomicLong idGenerator;
+    private final AtomicLong taskIds = new AtomicLong(0);
     private final AtomicBoolean isShutdown;
 
     /** Creates an instance of AsyncTaskService. */
@@ -96,12 +367,118 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         this.dataService = tp.getService(DataService.class);
         this.taskService = tp.getService(TaskService.class);
 
-        this.transactionRunner = new TransactionRunnerImpl();
+        String mode = p.getProperty(EXECUTION_MODE_PROPERTY,
+                                    DEFAULT_EXECUTION_MODE);
+        AsyncTaskExecutor taskExecutor;
+        if (mode.equals(EXECUTION_MODE_POOL)) {
+            taskExecutor = createPoolExecutor(p);
+        } else if (mode.equals(EXECUTION_MODE_VIRTUAL)) {
+            ExecutorService virtualExecutor =
+                PooledTaskExecutor.newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                int maxTasks =
+                    Integer.parseInt(p.getProperty(VIRTUAL_MAX_TASKS_PROPERTY,
+                                                   DEFAULT_VIRTUAL_MAX_TASKS));
+                taskExecutor =
+                    new PooledTaskExecutor(virtualExecutor, maxTasks);
+            } else {
+                logger.warning("Virtual threads are not supported; " +
+                               "falling back to execution mode: " +
+                               EXECUTION_MODE_POOL);
+                mode = EXECUTION_MODE_POOL;
+                taskExecutor = createPoolExecutor(p);
+            }
+        } else if (mode.equals(EXECUTION_MODE_SCHEDULER)) {
+            taskExecutor = new SchedulerTaskExecutor();
+        } else {
+            throw new IllegalArgumentException("Unknown execution mode: " +
+                                               mode);
+        }
+        logger.config("Using execution mode: " + mode);
+
+        String admissionMode = p.getProperty(ADMISSION_MODE_PROPERTY,
+                                             DEFAULT_ADMISSION_MODE);
+        AdmissionController.Mode controllerMode;
+        if (admissionMode.equals(ADMISSION_MODE_REJECT)) {
+            controllerMode = AdmissionController.Mode.REJECT;
+        } else if (admissionMode.equals(ADMISSION_MODE_DEFER)) {
+            controllerMode = AdmissionController.Mode.DEFER;
+        } else {
+            throw new IllegalArgumentException("Unknown admission mode: " +
+                                               admissionMode);
+        }
+        int maxTasks =
+            Integer.parseInt(p.getProperty(ADMISSION_MAX_TASKS_PROPERTY,
+                                           DEFAULT_ADMISSION_MAX_TASKS));
+        int maxTasksPerOwner =
+            Integer.parseInt(p.getProperty(
+                                 ADMISSION_MAX_TASKS_PER_OWNER_PROPERTY,
+                                 DEFAULT_ADMISSION_MAX_TASKS_PER_OWNER));
+        int maxDeferred =
+            Integer.parseInt(p.getProperty(ADMISSION_MAX_DEFERRED_PROPERTY,
+                                           DEFAULT_ADMISSION_MAX_DEFERRED));
+        this.admission = new AdmissionController(taskExecutor, controllerMode,
+                                                 maxTasks, maxTasksPerOwner,
+                                                 maxDeferred);
+        this.executor = admission;
+        logger.config("Using admission mode: " + admissionMode +
+                      ", max tasks: " + maxTasks + ", per owner: " +
+                      maxTasksPerOwner);
+
+        int batchSize =
+            Integer.parseInt(p.getProperty(CALLBACK_BATCH_SIZE_PROPERTY,
+                                           DEFAULT_CALLBACK_BATCH_SIZE));
+        long batchDelay =
+            Long.parseLong(p.getProperty(CALLBACK_BATCH_DELAY_PROPERTY,
+                                         DEFAULT_CALLBACK_BATCH_DELAY));
+        if ((batchSize < 1) || (batchDelay < 0)) {
+            throw new IllegalArgumentException("Invalid callback batching: " +
+                                               batchSize + ", " + batchDelay);
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor
+            (new DaemonThreadFactory("AsyncTaskService-timer-"));
+        if (batchSize > 1) {
+            this.callbackBatcher = new CallbackBatcher(batchSize, batchDelay);
+            logger.config("Batching up to " + batchSize + " callbacks");
+        } else {
+            this.callbackBatcher = null;
+        }
+
+        this.defaultTimeout =
+            Long.parseLong(p.getProperty(TASK_TIMEOUT_PROPERTY,
+                                         DEFAULT_TASK_TIMEOUT));
+        if (defaultTimeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be " +
+                                               "negative");
+        }
+
+        this.recoveryChunkSize =
+            Integer.parseInt(p.getProperty(RECOVERY_CHUNK_SIZE_PROPERTY,
+                                           DEFAULT_RECOVERY_CHUNK_SIZE));
+        this.recoveryThreads =
+            Integer.parseInt(p.getProperty(RECOVERY_THREADS_PROPERTY,
+                                           DEFAULT_RECOVERY_THREADS));
+        if ((recoveryChunkSize < 1) || (recoveryThreads < 1)) {
+            throw new IllegalArgumentException("Invalid recovery settings: " +
+                                               recoveryChunkSize + ", " +
+                                               recoveryThreads);
+        }
+
+        if (Boolean.valueOf(p.getProperty(LOCAL_CALLBACKS_PROPERTY,
+                                          DEFAULT_LOCAL_CALLBACKS)))
+        {
+            this.localCallbacks =
+                new ConcurrentHashMap<String,LocalCallback<?>>();
+            logger.config("Keeping callbacks in a node-local registry");
+        } else {
+            this.localCallbacks = null;
+        }
 
         this.appIdentity = transactionProxy.getCurrentOwner();
 
         WatchdogService watchdogService = tp.getService(WatchdogService.class);
-        namespace = CALLBACK_NS_ROOT + dataService.getLocalNodeId() + ".";
+        nodeId = dataService.getLocalNodeId();
+        namespace = CALLBACK_NS_ROOT + nodeId + ".";
         watchdogService.addRecoveryListener(new RecoveryListenerImpl());
 
         idGenerator = new AtomicLong(0);
@@ -114,18 +491,43 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
     }
 
     /** {@inheritDoc} */
-    public void ready() throws Exception { }
+    public void ready() throws Exception {
+        ObjectName name =
+            new ObjectName(AsyncTaskServiceMXBean.MXBEAN_NAME +
+                           ",node=" + nodeId);
+        try {
+            ManagementFactory.getPlatformMBeanServer().
+                registerMBean(new ManagementImpl(), name);
+            mxbeanName = name;
+        } catch (JMException jme) {
+            logger.log(Level.WARNING, "Could not register management bean",
+                       jme);
+        }
+    }
 
     /** {@inheritDoc} */
     public void shutdown() {
-        isShutdown.set(true);
+        if (isShutdown.compareAndSet(false, true)) {
+            executor.shutdown();
+            timer.shutdownNow();
+            if (mxbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().
+                        unregisterMBean(mxbeanName);
+                } catch (JMException jme) {
+                    logger.log(Level.FINE, "Could not unregister " +
+                               "management bean", jme);
+                }
+            }
+        }
     }
 
     /** {@inheritDoc} */
     public void startTask(AsyncRunnable r) throws TaskRejectedException {
         if (r == null)
             throw new NullPointerException("Runnable must not be null");
-        ctxFactory.joinTransaction().addRunner(new RunnableKernelRunner(r));
+        TxnState txnState = ctxFactory.joinTransaction();
+        txnState.addRunner(new RunnableKernelRunner(r, txnState.owner));
     }
 
     /** {@inheritDoc} */
@@ -136,11 +538,124 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
             throw new NullPointerException("Callable must not be null");
         if (callback == null)
             throw new NullPointerException("Callback must not be null");
-        String name = namespace + idGenerator.getAndIncrement();
-        dataService.
-            setServiceBinding(name, new CallbackWrapper<T>(callback));
-        ctxFactory.joinTransaction().
-            addRunner(new CallableKernelRunner<T>(c, name));
+        TxnState txnState = ctxFactory.joinTransaction();
+        String name = registerCallback(txnState, callback);
+        txnState.addRunner(new CallableKernelRunner<T>(c, name,
+                                                       txnState.owner));
+    }
+
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<T> startStage(AsyncCallable<T> c)
+        throws TaskRejectedException
+    {
+        if (c == null)
+            throw new NullPointerException("Callable must not be null");
+        return startChain(c);
+    }
+
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<List<T>>
+        allOf(List<? extends AsyncCallable<? extends T>> callables)
+        throws TaskRejectedException
+    {
+        checkCallables(callables);
+        TxnState txnState = ctxFactory.joinTransaction();
+        return startChain(new AllOfCallable<T>(callables, txnState.owner));
+    }
+
+    /** {@inheritDoc} */
+    public <T> AsyncTaskStage<T>
+        anyOf(List<? extends AsyncCallable<? extends T>> callables)
+        throws TaskRejectedException
+    {
+        checkCallables(callables);
+        TxnState txnState = ctxFactory.joinTransaction();
+        return startChain(new AnyOfCallable<T>(callables, txnState.owner));
+    }
+
+    /** {@inheritDoc} */
+    public boolean cancelTask(AsyncTaskHandle handle) {
+        if (handle == null)
+            throw new NullPointerException("Handle must not be null");
+        TxnState txnState = ctxFactory.joinTransaction();
+        if (handle.getNodeId() != nodeId)
+            return false;
+        long taskId = handle.getTaskId();
+        if ((! trackedTasks.containsKey(taskId)) &&
+            (! txnState.isTracking(taskId)))
+            return false;
+        txnState.cancelTask(taskId);
+        return true;
+    }
+
+    /** Checks that the given list of callables is valid to run. */
+    private static void checkCallables(List<? extends AsyncCallable<?>>
+                                       callables)
+    {
+        if (callables == null)
+            throw new NullPointerException("Callables must not be null");
+        if (callables.isEmpty())
+            throw new IllegalArgumentException("Callables must not be empty");
+        for (AsyncCallable<?> c : callables) {
+            if (c == null)
+                throw new NullPointerException("Callable must not be null");
+        }
+    }
+
+    /** Starts a chain of stages, beginning with the given callable. */
+    private <T> AsyncTaskStage<T> startChain(AsyncCallable<T> c) {
+        TxnState txnState = ctxFactory.joinTransaction();
+        ComposedTask task = new ComposedTask(txnState, c);
+        txnState.addRunner(task.runner);
+        return new StageImpl<T>(task);
+    }
+
+    /**
+     * Keeps a callback until its task completes, returning the name that
+     * is used to find the callback again.
+     */
+    private <T> String registerCallback(TxnState txnState,
+                                        AsyncTaskCallback<T> callback)
+    {
+        String name = newCallbackName();
+        if (localCallbacks != null) {
+            txnState.addLocalCallback(name, new LocalCallback<T>(callback));
+        } else {
+            dataService.
+                setServiceBinding(name, new CallbackWrapper<T>(callback));
+        }
+        return name;
+    }
+
+    /**
+     * Returns a new name for a callback. Names start with a shard key
+     * taken from the identifier, so that consecutive callbacks are spread
+     * evenly across the shards used for recovery.
+     */
+    private String newCallbackName() {
+        long id = idGenerator.getAndIncrement();
+        return namespace + (id % CALLBACK_SHARDS) + "." + id;
+    }
+
+    /** Creates the thread pool executor defined by the given properties. */
+    private static AsyncTaskExecutor createPoolExecutor(Properties p) {
+        int coreThreads =
+            Integer.parseInt(p.getProperty(CORE_THREADS_PROPERTY,
+                                           DEFAULT_CORE_THREADS));
+        int maxThreads =
+            Integer.parseInt(p.getProperty(MAX_THREADS_PROPERTY,
+                                           DEFAULT_MAX_THREADS));
+        int queueSize =
+            Integer.parseInt(p.getProperty(QUEUE_SIZE_PROPERTY,
+                                           DEFAULT_QUEUE_SIZE));
+        long keepAlive =
+            Long.parseLong(p.getProperty(KEEP_ALIVE_PROPERTY,
+                                         DEFAULT_KEEP_ALIVE));
+        long agingDelay =
+            Long.parseLong(p.getProperty(PRIORITY_AGING_PROPERTY,
+                                         DEFAULT_PRIORITY_AGING));
+        return new PooledTaskExecutor(coreThreads, maxThreads, queueSize,
+                                      keepAlive, agingDelay);
     }
 
     /** Local implementation of TransactionContext to manage state. */
@@ -148,11 +663,33 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         private final HashSet<TaskReservation> reservations =
             new HashSet<TaskReservation>();
         private final Identity owner = transactionProxy.getCurrentOwner();
+        private Map<String,LocalCallback<?>> addedCallbacks = null;
+        private List<String> removedCallbacks = null;
+        private Map<Long,CallableKernelRunner<?>> trackedRunners = null;
+        private List<Long> cancelledTasks = null;
         TxnState(Transaction txn) {
             super(txn);
         }
         /** {@inheritDoc} */
         public void commit() {
+            // the callbacks must be registered before any task can run
+            if (addedCallbacks != null)
+                localCallbacks.putAll(addedCallbacks);
+            if (removedCallbacks != null) {
+                for (String name : removedCallbacks)
+                    localCallbacks.remove(name);
+            }
+            // tasks must be tracked and cancelled before they can start
+            if (trackedRunners != null)
+                trackedTasks.putAll(trackedRunners);
+            if (cancelledTasks != null) {
+                for (Long taskId : cancelledTasks) {
+                    CallableKernelRunner<?> runner = trackedTasks.get(taskId);
+                    if (runner != null)
+                        runner.stop(new CancellationException("Task was " +
+                                                              "cancelled"));
+                }
+            }
             for (TaskReservation r : reservations)
                 r.use();
         }
@@ -161,11 +698,93 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
             for (TaskReservation r : reservations)
                 r.cancel();
         }
+        /** Adds a node-local callback to register on commit. */
+        void addLocalCallback(String name, LocalCallback<?> callback) {
+            if (addedCallbacks == null)
+                addedCallbacks = new HashMap<String,LocalCallback<?>>();
+            addedCallbacks.put(name, callback);
+        }
+        /** Adds a callable that may be cancelled, tracked on commit. */
+        void trackTask(CallableKernelRunner<?> runner) {
+            if (trackedRunners == null)
+                trackedRunners = new HashMap<Long,CallableKernelRunner<?>>();
+            trackedRunners.put(runner.getTaskId(), runner);
+        }
+        /** Returns whether the given task is to be tracked on commit. */
+        boolean isTracking(long taskId) {
+            return (trackedRunners != null) &&
+                trackedRunners.containsKey(taskId);
+        }
+        /** Notes a task to cancel on commit. */
+        void cancelTask(long taskId) {
+            if (cancelledTasks == null)
+                cancelledTasks = new ArrayList<Long>();
+            cancelledTasks.add(taskId);
+        }
+        /** Notes a node-local callback to remove on commit. */
+        void removeLocalCallback(String name) {
+            if (removedCallbacks == null)
+                removedCallbacks = new ArrayList<String>();
+            removedCallbacks.add(name);
+        }
         /** Adds a runner to the pending set to start on commit. */
         public void addRunner(KernelRunnable r) throws TaskRejectedException {
             if (isShutdown.get())
                 throw new IllegalStateException("Service is shutdown");
-            reservations.add(taskScheduler.reserveTask(r, owner));
+            reservations.add(executor.reserveTask(r, owner));
+        }
+    }
+
+    /** Implementation of AsyncTaskExecutor backed by the TaskScheduler. */
+    private class SchedulerTaskExecutor implements AsyncTaskExecutor {
+        /** {@inheritDoc} */
+        public TaskReservation reserveTask(KernelRunnable task,
+                                           Identity owner)
+        {
+            return taskScheduler.reserveTask(task, owner);
+        }
+        /** {@inheritDoc} */
+        public boolean tryExecute(KernelRunnable task, Identity owner) {
+            try {
+                taskScheduler.scheduleTask(task, owner);
+                return true;
+            } catch (TaskRejectedException tre) {
+                return false;
+            }
+        }
+        /** {@inheritDoc} */
+        public int getQueuedTasks() {
+            return -1;
+        }
+        /** {@inheritDoc} */
+        public void shutdown() { }
+    }
+
+    /** Reports the admission and executor counts for management. */
+    private class ManagementImpl implements AsyncTaskServiceMXBean {
+        /** {@inheritDoc} */
+        public int getInFlightTasks() {
+            return admission.getInFlightTasks();
+        }
+        /** {@inheritDoc} */
+        public int getDeferredTasks() {
+            return admission.getDeferredTasks();
+        }
+        /** {@inheritDoc} */
+        public int getQueuedTasks() {
+            return admission.getQueuedTasks();
+        }
+        /** {@inheritDoc} */
+        public long getTotalAdmitted() {
+            return admission.getAdmittedCount();
+        }
+        /** {@inheritDoc} */
+        public long getTotalDeferred() {
+            return admission.getDeferredCount();
+        }
+        /** {@inheritDoc} */
+        public long getTotalRejected() {
+            return admission.getRejectedCount();
         }
     }
 
@@ -183,8 +802,16 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         }
     }
 
-    /** Private implementation of TransactionRunner. */
+    /**
+     * Private implementation of TransactionRunner. Tasks may be run on
+     * threads that are not owned by the kernel, so the owner is provided
+     * explicitly rather than taken from the current context.
+     */
     private class TransactionRunnerImpl implements TransactionRunner {
+        private final Identity owner;
+        TransactionRunnerImpl(Identity owner) {
+            this.owner = owner;
+        }
         public void runTransaction(final Task task) throws Exception {
             KernelRunnable r = new KernelRunnable() {
                     public String getBaseTaskType() {
@@ -194,7 +821,7 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
                         task.run();
                     }
                 };
-            transactionScheduler.runTask(r, transactionProxy.getCurrentOwner());
+            transactionScheduler.runTask(r, owner);
         }
     }
 
@@ -244,46 +871,753 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         }
     }
 
+    /**
+     * Node-local record of a callback. A managed callback is kept as its
+     * object identifier, and any other callback is kept serialized, so
+     * that each notification works on a fresh copy in its own transaction
+     * just as it would if the callback had been read from the data store.
+     */
+    private static class LocalCallback<T> {
+        private final BigInteger objectId;
+        private final byte [] bytes;
+        LocalCallback(AsyncTaskCallback<T> callback) {
+            DataService dataService =
+                transactionProxy.getService(DataService.class);
+            if (callback instanceof ManagedObject) {
+                objectId = dataService.createReference(callback).getId();
+                bytes = null;
+            } else {
+                objectId = null;
+                try {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    ObjectOutputStream out = new ObjectOutputStream(bout);
+                    out.writeObject(callback);
+                    out.close();
+                    bytes = bout.toByteArray();
+                } catch (IOException ioe) {
+                    throw new IllegalArgumentException("Callback could not " +
+                                                       "be serialized", ioe);
+                }
+            }
+        }
+        /** Returns the callback, or null if the app removed it. */
+        @SuppressWarnings("unchecked")
+        AsyncTaskCallback<T> get() throws Exception {
+            if (objectId != null) {
+                try {
+                    return (AsyncTaskCallback<T>)
+                        (transactionProxy.getService(DataService.class).
+                         createReferenceForId(objectId).get());
+                } catch (ObjectNotFoundException onfe) {
+                    return null;
+                }
+            }
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (AsyncTaskCallback<T>) (in.readObject());
+            } finally {
+                in.close();
+            }
+        }
+    }
+
     /** Non-persisted wrapper for simple Runnables. */
-    private final class RunnableKernelRunner implements KernelRunnable {
+    private final class RunnableKernelRunner
+        implements KernelRunnable, AsyncPrioritizedTask
+    {
         private final AsyncRunnable r;
-        RunnableKernelRunner(AsyncRunnable r) {
+        private final TransactionRunner transactionRunner;
+        RunnableKernelRunner(AsyncRunnable r, Identity owner) {
             this.r = r;
+            this.transactionRunner = new TransactionRunnerImpl(owner);
         }
         public String getBaseTaskType() {
             return getClass().getName();
         }
+        public AsyncTaskPriority getPriority() {
+            return PooledTaskExecutor.priorityOf(r);
+        }
         public void run() {
             r.run(transactionRunner);
         }
     }
 
-    /** Non-persisted wrapper for Callables with associated callbacks. */
-    private final class CallableKernelRunner<T> implements KernelRunnable {
+    /**
+     * Non-persisted wrapper for Callables with associated callbacks. The
+     * name of the callback may be provided after the runner is created,
+     * while the calling transaction is still active, and if no callback is
+     * ever provided then the result is discarded.
+     */
+    private final class CallableKernelRunner<T>
+        implements KernelRunnable, AsyncPrioritizedTask
+    {
         private final AsyncCallable<T> c;
-        private final String name;
-        CallableKernelRunner(AsyncCallable<T> c, String name) {
+        private String name;
+        private final Identity owner;
+        private final TransactionRunner transactionRunner;
+        private final long taskId;
+        private long timeout;
+        private AsyncTaskPriority priority;
+        // the task's progress, where only one caller may move it to DONE
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // the thread running the task, guarded by this runner's lock
+        private Thread thread = null;
+        private volatile Future<?> timeoutFuture = null;
+        private volatile Future<?> retryFuture = null;
+        CallableKernelRunner(AsyncCallable<T> c, String name, Identity owner) {
             this.c = c;
             this.name = name;
+            this.owner = owner;
+            this.transactionRunner = new TransactionRunnerImpl(owner);
+            this.taskId = taskIds.getAndIncrement();
+            this.timeout = defaultTimeout;
+            this.priority = PooledTaskExecutor.priorityOf(c);
+        }
+        void setCallbackName(String name) {
+            this.name = name;
+        }
+        void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+        void setPriority(AsyncTaskPriority priority) {
+            this.priority = priority;
+        }
+        public AsyncTaskPriority getPriority() {
+            return priority;
+        }
+        long getTaskId() {
+            return taskId;
         }
         public String getBaseTaskType() {
             return getClass().getName();
         }
         public void run() {
-            KernelRunnable r = null;
+            if (! state.compareAndSet(PENDING, RUNNING)) {
+                // the task was cancelled before it started
+                return;
+            }
+            synchronized (this) {
+                if (state.get() == DONE) {
+                    // the task was stopped before its thread was published,
+                    // so the callback has already been notified
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            // the timeout covers the whole task, including any re-tries
+            if ((timeout > 0) && (timeoutFuture == null))
+                startTimeout();
+
+            T result = null;
+            Throwable failure = null;
+            long retryDelay = -1;
             try {
-                r = new CallbackKernelRunner<T>(c.call(transactionRunner),
-                                                name, true);
+                result = c.call(transactionRunner);
+            } catch (RetryDelay rd) {
+                retryDelay = rd.delay;
             } catch (Throwable throwable) {
                 // there was a failure running the task itself
-                r  =  new CallbackKernelRunner<Throwable>(throwable, name,
-                                                          false);
+                failure = throwable;
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+                // clear any interrupt that was meant for this task
+                Thread.interrupted();
+            }
+
+            if (retryDelay >= 0) {
+                // the task is backing off before a re-try, so it goes back
+                // to waiting, without a thread, until the backoff is over
+                if (state.compareAndSet(RUNNING, PENDING))
+                    scheduleRetry(retryDelay);
+                return;
+            }
+            if (! state.compareAndSet(RUNNING, DONE)) {
+                // the task timed out or was cancelled, and the callback
+                // has already been notified
+                return;
+            }
+            finish();
+            if (name == null) {
+                if ((failure != null) && (logger.isLoggable(Level.WARNING)))
+                    logger.log(Level.WARNING, "Asynchronous task with " +
+                               "no callback failed", failure);
+                return;
+            }
+            CallbackKernelRunner<?> r = null;
+            if (failure == null)
+                r = new CallbackKernelRunner<T>(result, name, true, owner);
+            else
+                r = new CallbackKernelRunner<Throwable>(failure, name, false,
+                                                        owner);
+            scheduleCallback(r);
+        }
+        /**
+         * Stops the task, interrupting it if it's running, and notifies
+         * the callback with the given reason. Returns {@code false} if the
+         * task had already completed.
+         */
+        boolean stop(Throwable reason) {
+            int current = state.get();
+            while (current != DONE) {
+                if (state.compareAndSet(current, DONE))
+                    break;
+                current = state.get();
+            }
+            if (current == DONE)
+                return false;
+            synchronized (this) {
+                if (thread != null)
+                    thread.interrupt();
             }
+            finish();
+            if (name != null)
+                scheduleCallback(new CallbackKernelRunner<Throwable>
+                                 (reason, name, false, owner));
+            return true;
+        }
+        /** Starts the timer that stops the task when it runs too long. */
+        private void startTimeout() {
             try {
-                transactionScheduler.
-                    scheduleTask(r, transactionProxy.getCurrentOwner());
-            } catch (TaskRejectedException tre) {
-                handleNotifyFailure(tre);
+                timeoutFuture = timer.schedule(new Runnable() {
+                        public void run() {
+                            stop(new TimeoutException("Task timed out " +
+                                                      "after " + timeout +
+                                                      "ms"));
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // the service is shutting down
+                logger.log(Level.FINE, "Could not start task timeout", ree);
+            }
+        }
+        /**
+         * Starts the timer that runs the task again once the given backoff
+         * has passed. If there is no capacity to run the task then, it
+         * waits for another backoff rather than running on the timer.
+         */
+        private void scheduleRetry(final long delay) {
+            try {
+                retryFuture = timer.schedule(new Runnable() {
+                        public void run() {
+                            if ((state.get() == PENDING) &&
+                                (! executor.tryExecute
+                                 (CallableKernelRunner.this, owner)))
+                                scheduleRetry(delay);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // the service is shutting down
+                logger.log(Level.FINE, "Could not schedule task re-try", ree);
+            }
+        }
+        /** Releases the state held for a task that has completed. */
+        private void finish() {
+            trackedTasks.remove(taskId, this);
+            Future<?> future = timeoutFuture;
+            if (future != null)
+                future.cancel(false);
+            future = retryFuture;
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    /** The state of a chain of stages, run as a single callable. */
+    private final class ComposedTask
+        implements AsyncCallable<Object>, AsyncPrioritizedTask
+    {
+        final TxnState txnState;
+        final CallableKernelRunner<Object> runner;
+        // the last callable in the chain, which calls all earlier ones
+        AsyncCallable<?> callable;
+        ComposedTask(TxnState txnState, AsyncCallable<?> callable) {
+            this.txnState = txnState;
+            this.callable = callable;
+            this.runner =
+                new CallableKernelRunner<Object>(this, null, txnState.owner);
+        }
+        public AsyncTaskPriority getPriority() {
+            // the runner is created before the chain is extended, so this
+            // is the priority of the first callable
+            return PooledTaskExecutor.priorityOf(callable);
+        }
+        public Object call(TransactionRunner transactionRunner)
+            throws Exception
+        {
+            return callable.call(transactionRunner);
+        }
+    }
+
+    /** Private implementation of AsyncTaskStage. */
+    private final class StageImpl<T> implements AsyncTaskStage<T> {
+        private final ComposedTask task;
+        private boolean continued = false;
+        StageImpl(ComposedTask task) {
+            this.task = task;
+        }
+        /** {@inheritDoc} */
+        public <R> AsyncTaskStage<R>
+            thenApply(final AsyncFunction<? super T, R> function)
+        {
+            if (function == null)
+                throw new NullPointerException("Function must not be null");
+            final AsyncCallable<T> previous = continueStage();
+            task.callable = new AsyncCallable<R>() {
+                    public R call(TransactionRunner transactionRunner)
+                        throws Exception
+                    {
+                        return function.apply(previous.call(transactionRunner),
+                                              transactionRunner);
+                    }
+                };
+            return new StageImpl<R>(task);
+        }
+        /** {@inheritDoc} */
+        public <R> AsyncTaskStage<R>
+            thenCompose(final AsyncFunction<? super T, AsyncCallable<R>>
+                        function)
+        {
+            if (function == null)
+                throw new NullPointerException("Function must not be null");
+            final AsyncCallable<T> previous = continueStage();
+            task.callable = new AsyncCallable<R>() {
+                    public R call(TransactionRunner transactionRunner)
+                        throws Exception
+                    {
+                        AsyncCallable<R> next =
+                            function.apply(previous.call(transactionRunner),
+                                           transactionRunner);
+                        if (next == null)
+                            throw new NullPointerException("Composed " +
+                                                           "callable must " +
+                                                           "not be null");
+                        return next.call(transactionRunner);
+                    }
+                };
+            return new StageImpl<R>(task);
+        }
+        /** {@inheritDoc} */
+        public AsyncTaskStage<T> withRetry(AsyncRetryPolicy policy) {
+            if (policy == null)
+                throw new NullPointerException("Policy must not be null");
+            task.callable = new RetryingCallable<T>(continueStage(), policy);
+            return new StageImpl<T>(task);
+        }
+        /** {@inheritDoc} */
+        public void thenNotify(AsyncTaskCallback<T> callback) {
+            if (callback == null)
+                throw new NullPointerException("Callback must not be null");
+            continueStage();
+            task.runner.setCallbackName(registerCallback(task.txnState,
+                                                         callback));
+        }
+        /** {@inheritDoc} */
+        public AsyncTaskStage<T> withTimeout(long timeout) {
+            if (timeout < 0)
+                throw new IllegalArgumentException("Timeout must not be " +
+                                                   "negative");
+            checkTransaction();
+            task.runner.setTimeout(timeout);
+            return this;
+        }
+        /** {@inheritDoc} */
+        public AsyncTaskStage<T> withPriority(AsyncTaskPriority priority) {
+            if (priority == null)
+                throw new NullPointerException("Priority must not be null");
+            checkTransaction();
+            task.runner.setPriority(priority);
+            return this;
+        }
+        /** {@inheritDoc} */
+        public AsyncTaskHandle getHandle() {
+            checkTransaction();
+            task.txnState.trackTask(task.runner);
+            return new AsyncTaskHandle(nodeId, task.runner.getTaskId());
+        }
+        /** Marks this stage as continued, returning its callable. */
+        @SuppressWarnings("unchecked")
+        private AsyncCallable<T> continueStage() {
+            if (continued)
+                throw new IllegalStateException("Stage has already been " +
+                                                "continued");
+            checkTransaction();
+            continued = true;
+            return (AsyncCallable<T>) (task.callable);
+        }
+        /** Checks that the task's transaction is the current one. */
+        private void checkTransaction() {
+            if (ctxFactory.joinTransaction() != task.txnState)
+                throw new IllegalStateException("Stages must be composed in " +
+                                                "the transaction that " +
+                                                "started the task");
+        }
+    }
+
+    /**
+     * Private callable that re-tries another callable as defined by an
+     * {@code AsyncRetryPolicy}. Rather than spending the backoff in the
+     * running thread, a failed attempt throws a {@code RetryDelay} out of
+     * the whole chain, and the task's runner runs the chain again once the
+     * backoff has passed. Stages after this one only run once this stage
+     * has a result, so running the chain again resumes with the next
+     * attempt. A timeout or cancellation during the backoff cancels the
+     * pending run.
+     */
+    private static final class RetryingCallable<T> implements AsyncCallable<T> {
+        private final AsyncCallable<T> callable;
+        private final AsyncRetryPolicy policy;
+        // the current attempt, kept across runs of the chain, which are
+        // ordered by handing the task from the timer to the executor
+        private int attempt = 1;
+        RetryingCallable(AsyncCallable<T> callable, AsyncRetryPolicy policy) {
+            this.callable = callable;
+            this.policy = policy;
+        }
+        public T call(TransactionRunner transactionRunner) throws Exception {
+            try {
+                T result = callable.call(transactionRunner);
+                attempt = 1;
+                return result;
+            } catch (RetryDelay rd) {
+                // an earlier re-try is backing off, and this attempt
+                // continues when the chain is run again
+                throw rd;
+            } catch (Exception e) {
+                if ((attempt >= policy.getMaxAttempts()) ||
+                    (! policy.isRetryable(e)))
+                {
+                    attempt = 1;
+                    throw e;
+                }
+                attempt++;
+                if (logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Re-trying failed task, " +
+                               "attempt " + attempt, e);
+                throw new RetryDelay(policy.getBackoff(attempt));
+            }
+        }
+    }
+
+    /**
+     * Thrown out of a chain of stages when it must wait for the given
+     * backoff before its next attempt.
+     */
+    private static final class RetryDelay extends Exception {
+        private static final long serialVersionUID = 1L;
+        final long delay;
+        RetryDelay(long delay) {
+            super("Re-try after " + delay + "ms");
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * Private callable that runs a set of callables in parallel, returning
+     * all of their results. Each callable after the first is handed to the
+     * executor if there is capacity, and otherwise is run by the calling
+     * thread, so the fan-out never fails for lack of threads. A callable
+     * that was handed off but has not started by the time the calling
+     * thread is ready to wait is taken back and run by the calling thread,
+     * so fan-outs never wait on branches stuck behind them in the queue.
+     */
+    private final class AllOfCallable<T> implements AsyncCallable<List<T>> {
+        private final List<? extends AsyncCallable<? extends T>> callables;
+        private final Identity owner;
+        AllOfCallable(List<? extends AsyncCallable<? extends T>> callables,
+                      Identity owner)
+        {
+            this.callables = new ArrayList<AsyncCallable<? extends T>>
+                (callables);
+            this.owner = owner;
+        }
+        public List<T> call(TransactionRunner transactionRunner)
+            throws Exception
+        {
+            FanOut<T> fanOut = new FanOut<T>(callables, transactionRunner,
+                                             callables.size());
+            fanOut.start(owner);
+            fanOut.await();
+            if (fanOut.failure != null)
+                throw rethrow(fanOut.failure);
+            List<T> results = new ArrayList<T>(callables.size());
+            for (int i = 0; i < callables.size(); i++)
+                results.add(fanOut.results.get(i));
+            return results;
+        }
+    }
+
+    /**
+     * Private callable that runs a set of callables in parallel, returning
+     * the first successful result.
+     */
+    private final class AnyOfCallable<T> implements AsyncCallable<T> {
+        private final List<? extends AsyncCallable<? extends T>> callables;
+        private final Identity owner;
+        AnyOfCallable(List<? extends AsyncCallable<? extends T>> callables,
+                      Identity owner)
+        {
+            this.callables = new ArrayList<AsyncCallable<? extends T>>
+                (callables);
+            this.owner = owner;
+        }
+        public T call(TransactionRunner transactionRunner) throws Exception {
+            FanOut<T> fanOut = new FanOut<T>(callables, transactionRunner, 1);
+            fanOut.start(owner);
+            fanOut.await();
+            if (fanOut.succeeded.get() == 0)
+                throw rethrow(fanOut.failure);
+            return fanOut.firstResult;
+        }
+    }
+
+    /** The shared state for a set of callables run in parallel. */
+    private final class FanOut<T> {
+        private final List<? extends AsyncCallable<? extends T>> callables;
+        private final TransactionRunner transactionRunner;
+        private final int required;
+        private final CountDownLatch done;
+        final AtomicReferenceArray<T> results;
+        final AtomicInteger succeeded = new AtomicInteger(0);
+        private final AtomicInteger finished = new AtomicInteger(0);
+        // set for each callable once some thread has claimed it to run
+        private final AtomicIntegerArray claimed;
+        volatile T firstResult = null;
+        volatile Throwable failure = null;
+        FanOut(List<? extends AsyncCallable<? extends T>> callables,
+               TransactionRunner transactionRunner, int required)
+        {
+            this.callables = callables;
+            this.transactionRunner = transactionRunner;
+            this.required = required;
+            this.done = new CountDownLatch(1);
+            this.results = new AtomicReferenceArray<T>(callables.size());
+            this.claimed = new AtomicIntegerArray(callables.size());
+        }
+        /** Starts all callables, running the first in this thread. */
+        void start(Identity owner) {
+            for (int i = 1; i < callables.size(); i++) {
+                KernelRunnable r = new BranchRunner(i);
+                if (! executor.tryExecute(r, owner))
+                    claimAndRun(i);
+            }
+            claimAndRun(0);
+        }
+        /**
+         * Runs any callables that no thread has started, since they may be
+         * queued behind tasks that are themselves waiting, and then waits
+         * until enough callables have finished.
+         */
+        void await() throws InterruptedException {
+            for (int i = 1; (i < callables.size()) && (done.getCount() > 0);
+                 i++)
+            {
+                claimAndRun(i);
+            }
+            done.await();
+        }
+        /** Runs one of the callables unless another thread claimed it. */
+        void claimAndRun(int index) {
+            if (claimed.compareAndSet(index, 0, 1))
+                runBranch(index);
+        }
+        /** Runs one of the callables and records its outcome. */
+        void runBranch(int index) {
+            if (done.getCount() == 0)
+                return;
+            try {
+                T result = callables.get(index).call(transactionRunner);
+                results.set(index, result);
+                if (succeeded.incrementAndGet() == 1)
+                    firstResult = result;
+                if (succeeded.get() >= required)
+                    done.countDown();
+            } catch (Throwable t) {
+                if (required == 1) {
+                    // any-of reports the last failure if nothing succeeds
+                    failure = t;
+                } else if (failure == null) {
+                    // all-of fails as soon as any callable fails
+                    failure = t;
+                    done.countDown();
+                }
+            }
+            if (finished.incrementAndGet() == callables.size())
+                done.countDown();
+        }
+        /** Runs a single branch as a task. */
+        private final class BranchRunner
+            implements KernelRunnable, AsyncPrioritizedTask
+        {
+            private final int index;
+            BranchRunner(int index) {
+                this.index = index;
+            }
+            public String getBaseTaskType() {
+                return getClass().getName();
+            }
+            public AsyncTaskPriority getPriority() {
+                return PooledTaskExecutor.priorityOf(callables.get(index));
+            }
+            public void run() {
+                claimAndRun(index);
+            }
+        }
+    }
+
+    /** Returns the given throwable as an exception, or throws an Error. */
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error)
+            throw (Error) t;
+        return (Exception) t;
+    }
+
+    /** Schedules a callback, batching it with others if enabled. */
+    private void scheduleCallback(CallbackKernelRunner<?> r) {
+        if (callbackBatcher != null) {
+            callbackBatcher.add(r);
+            return;
+        }
+        try {
+            transactionScheduler.scheduleTask(r, r.getOwner());
+        } catch (TaskRejectedException tre) {
+            handleNotifyFailure(tre);
+        }
+    }
+
+    /**
+     * Private class that collects completed callbacks for each owner and
+     * delivers them in batches, so that the commit cost is shared by
+     * many results.
+     */
+    private class CallbackBatcher {
+        private final int batchSize;
+        private final long batchDelay;
+        private final ConcurrentHashMap<Identity,CallbackBatch> pending =
+            new ConcurrentHashMap<Identity,CallbackBatch>();
+        CallbackBatcher(int batchSize, long batchDelay) {
+            this.batchSize = batchSize;
+            this.batchDelay = batchDelay;
+        }
+        /** Adds a callback to the current batch for its owner. */
+        void add(CallbackKernelRunner<?> r) {
+            Identity owner = r.getOwner();
+            while (true) {
+                CallbackBatch batch = pending.get(owner);
+                if (batch == null) {
+                    batch = new CallbackBatch(owner);
+                    CallbackBatch existing = pending.putIfAbsent(owner, batch);
+                    if (existing != null) {
+                        batch = existing;
+                    } else {
+                        batch.startTimer();
+                    }
+                }
+                synchronized (batch) {
+                    if (batch.closed) {
+                        // the batch was just delivered, so try again
+                        continue;
+                    }
+                    batch.runners.add(r);
+                    if (batch.runners.size() < batchSize) {
+                        return;
+                    }
+                }
+                batch.deliver();
+                return;
+            }
+        }
+        /** A collection of callbacks for one owner. */
+        private class CallbackBatch implements Runnable {
+            final Identity owner;
+            final List<CallbackKernelRunner<?>> runners =
+                new ArrayList<CallbackKernelRunner<?>>(batchSize);
+            boolean closed = false;
+            private volatile Future<?> timeout = null;
+            CallbackBatch(Identity owner) {
+                this.owner = owner;
+            }
+            /** Starts the timer that delivers a partial batch. */
+            void startTimer() {
+                try {
+                    timeout = timer.schedule(this, batchDelay,
+                                             TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    // the service is shutting down
+                    logger.log(Level.FINE, "Could not start batch timer", ree);
+                }
+            }
+            /** Called by the timer to deliver a partial batch. */
+            public void run() {
+                deliver();
+            }
+            /** Closes this batch and schedules its delivery. */
+            void deliver() {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                }
+                pending.remove(owner, this);
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                try {
+                    taskScheduler.
+                        scheduleTask(new BatchDeliveryRunner(owner, runners),
+                                     owner);
+                } catch (TaskRejectedException tre) {
+                    handleNotifyFailure(tre);
+                }
+            }
+        }
+    }
+
+    /**
+     * Private non-transactional KernelRunnable that notifies a batch of
+     * callbacks in one transaction. If that transaction fails then each
+     * callback is scheduled in its own transaction, so that one failing
+     * callback doesn't keep the others from being notified.
+     */
+    private class BatchDeliveryRunner implements KernelRunnable {
+        private final Identity owner;
+        private final List<CallbackKernelRunner<?>> runners;
+        BatchDeliveryRunner(Identity owner,
+                            List<CallbackKernelRunner<?>> runners)
+        {
+            this.owner = owner;
+            this.runners = runners;
+        }
+        public String getBaseTaskType() {
+            return getClass().getName();
+        }
+        public void run() {
+            try {
+                transactionScheduler.runTask(new KernelRunnable() {
+                        public String getBaseTaskType() {
+                            return "AsyncTaskService.CallbackBatch";
+                        }
+                        public void run() throws Exception {
+                            for (CallbackKernelRunner<?> r : runners) {
+                                r.run();
+                            }
+                        }
+                    }, owner);
+            } catch (Exception e) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Batch of " + runners.size() +
+                               " callbacks failed; delivering separately", e);
+                }
+                for (CallbackKernelRunner<?> r : runners) {
+                    try {
+                        transactionScheduler.scheduleTask(r, owner);
+                    } catch (TaskRejectedException tre) {
+                        handleNotifyFailure(tre);
+                    }
+                }
             }
         }
     }
@@ -294,14 +1628,16 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         private final String name;
         private final boolean succeeded;
         private final Identity owner;
-        CallbackKernelRunner(T t, String name, boolean succeeded) {
+        CallbackKernelRunner(T t, String name, boolean succeeded,
+                             Identity owner)
+        {
             if ((! succeeded) && (! (t instanceof Throwable)))
                 throw new IllegalArgumentException("Notification of failure " +
                                                    "must include a throwable");
             this.t = t;
             this.name = name;
             this.succeeded = succeeded;
-            this.owner = transactionProxy.getCurrentOwner();
+            this.owner = owner;
         }
         CallbackKernelRunner(String name, Identity owner) {
             this.t = null;
@@ -316,6 +1652,22 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
             return getClass().getName();
         }
         public void run() throws Exception {
+            if (localCallbacks != null) {
+                @SuppressWarnings("unchecked")
+                LocalCallback<T> local =
+                    (LocalCallback<T>) (localCallbacks.get(name));
+                if (local != null) {
+                    AsyncTaskCallback<T> callback = local.get();
+                    if (callback != null) {
+                        if (succeeded)
+                            callback.notifyResult(t);
+                        else
+                            callback.notifyFailed((Throwable)t);
+                    }
+                    ctxFactory.joinTransaction().removeLocalCallback(name);
+                    return;
+                }
+            }
             @SuppressWarnings("unchecked")
             CallbackWrapper<T> wrapper =
                 (CallbackWrapper<T>)(dataService.getServiceBinding(name));
@@ -328,51 +1680,124 @@ public class AsyncTaskService implements Service, AsyncTaskManager {
         }
     }
 
-    /** Private implementation of RecoveryListener used to handle failures */
+    /**
+     * Private implementation of RecoveryListener used to handle failures.
+     * The failed node's callback namespace is split into shards by the
+     * shard key at the start of each callback's name, and the shards are
+     * recovered in parallel. Each shard is processed in bounded chunks,
+     * each in its own transaction, and the failure notifications for a
+     * chunk are scheduled as soon as that chunk commits.
+     */
     private class RecoveryListenerImpl implements RecoveryListener {
         public void recover(Node node, SimpleCompletionHandler handler) {
-            final String nsRoot = CALLBACK_NS_ROOT + "." + node.getId();
-            final HashSet<CallbackKernelRunner<Throwable>> taskSet =
-                new HashSet<CallbackKernelRunner<Throwable>>();
+            final String nsRoot = CALLBACK_NS_ROOT + node.getId() + ".";
+            ExecutorService recoveryExecutor =
+                Executors.newFixedThreadPool(recoveryThreads,
+                                             new DaemonThreadFactory
+                                             ("AsyncTaskService-recovery-"));
+            List<Future<Integer>> shards = new ArrayList<Future<Integer>>();
+            for (int shard = 0; shard < CALLBACK_SHARDS; shard++) {
+                final String prefix = nsRoot + shard + ".";
+                shards.add(recoveryExecutor.submit(new Callable<Integer>() {
+                        public Integer call() throws Exception {
+                            return recoverShard(prefix);
+                        }
+                    }));
+            }
 
+            boolean succeeded = true;
+            int recovered = 0;
             try {
-                transactionScheduler.runTask(new KernelRunnable() {
-                        public String getBaseTaskType() {
-                            return "AsyncTaskService.RecoveryIterator";
-                        }
-                        public void run() throws Exception {
-                            taskSet.clear();
-                            String name =
-                                dataService.nextServiceBoundName(nsRoot);
-                            while (name.startsWith(nsRoot)) {
-                                String newName = namespace +
-                                    idGenerator.getAndIncrement();
-                                CallbackWrapper<?> obj =
-                                    (CallbackWrapper<?>)
-                                    (dataService.getServiceBinding(name));
-                                dataService.
-                                    setServiceBinding(newName, obj);
-                                dataService.removeServiceBinding(name);
-                                taskSet.add(new CallbackKernelRunner<Throwable>
-                                            (name, obj.getOwner()));
-                                name = dataService.nextServiceBoundName(name);
-                            }
-                        }
-                    }, appIdentity);
-            } catch (Exception e) {
-                handleNotifyFailure(e);
-                return;
+                for (Future<Integer> shard : shards) {
+                    try {
+                        recovered += shard.get();
+                    } catch (ExecutionException ee) {
+                        handleNotifyFailure(ee.getCause());
+                        succeeded = false;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                handleNotifyFailure(ie);
+                succeeded = false;
+            } finally {
+                recoveryExecutor.shutdownNow();
             }
 
-            for (CallbackKernelRunner<Throwable> r : taskSet) {
+            if (logger.isLoggable(Level.INFO))
+                logger.log(Level.INFO, "Recovered " + recovered +
+                           " callbacks from node " + node.getId());
+            if (succeeded)
+                handler.completed();
+        }
+    }
+
+    /**
+     * Recovers all callbacks bound with the given prefix, returning the
+     * number recovered.
+     */
+    private int recoverShard(String prefix) throws Exception {
+        int recovered = 0;
+        RecoveryChunk chunk = new RecoveryChunk(prefix);
+        do {
+            transactionScheduler.runTask(chunk, appIdentity);
+            chunk.committed();
+            for (CallbackKernelRunner<Throwable> r : chunk.runners) {
                 try {
                     transactionScheduler.scheduleTask(r, r.getOwner());
                 } catch (Exception e) {
                     handleNotifyFailure(e);
                 }
             }
+            recovered += chunk.runners.size();
+        } while (! chunk.finished);
+        return recovered;
+    }
 
-            handler.completed();
+    /**
+     * Private transactional task that moves the next chunk of a failed
+     * node's callbacks into this node's namespace. Each run continues
+     * from where the last committed run stopped.
+     */
+    private class RecoveryChunk implements KernelRunnable {
+        private final String prefix;
+        // the last name recovered by a committed run, or null
+        private String cursor = null;
+        // the last name recovered by the current run
+        private String last = null;
+        final List<CallbackKernelRunner<Throwable>> runners =
+            new ArrayList<CallbackKernelRunner<Throwable>>();
+        boolean finished = false;
+        RecoveryChunk(String prefix) {
+            this.prefix = prefix;
+        }
+        public String getBaseTaskType() {
+            return "AsyncTaskService.RecoveryChunk";
+        }
+        public void run() throws Exception {
+            // this may be re-tried, so always start from the cursor
+            runners.clear();
+            finished = false;
+            last = cursor;
+            String name = dataService.
+                nextServiceBoundName((last == null) ? prefix : last);
+            while ((name != null) && name.startsWith(prefix)) {
+                if (runners.size() == recoveryChunkSize)
+                    return;
+                String newName = newCallbackName();
+                CallbackWrapper<?> obj =
+                    (CallbackWrapper<?>) (dataService.getServiceBinding(name));
+                dataService.setServiceBinding(newName, obj);
+                dataService.removeServiceBinding(name);
+                runners.add(new CallbackKernelRunner<Throwable>
+                            (newName, obj.getOwner()));
+                last = name;
+                name = dataService.nextServiceBoundName(name);
+            }
+            finished = true;
+        }
+        /** Called once a run has committed to advance the cursor. */
+        void committed() {
+            cursor = last;
         }
     }
 
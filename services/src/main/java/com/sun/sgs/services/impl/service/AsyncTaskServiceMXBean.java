@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sun.sgs.services.impl.service;
+
+
+/**
+ * The management interface for {@code AsyncTaskService}. An instance is
+ * registered with the platform {@code MBeanServer} for each node, under
+ * {@link #MXBEAN_NAME} with a {@code node} key naming the node.
+ */
+public interface AsyncTaskServiceMXBean {
+
+    /** The base name under which this bean is registered. */
+    String MXBEAN_NAME = "com.sun.sgs.services:type=AsyncTaskService";
+
+    /**
+     * Returns the number of tasks that have been admitted and have not yet
+     * finished running.
+     *
+     * @return the number of in-flight tasks
+     */
+    int getInFlightTasks();
+
+    /**
+     * Returns the number of tasks that are waiting to be admitted.
+     *
+     * @return the number of deferred tasks
+     */
+    int getDeferredTasks();
+
+    /**
+     * Returns the number of admitted tasks that are waiting for a thread.
+     *
+     * @return the number of queued tasks, or {@code -1} if not known
+     */
+    int getQueuedTasks();
+
+    /**
+     * Returns the total number of tasks admitted since the service started.
+     *
+     * @return the number of admitted tasks
+     */
+    long getTotalAdmitted();
+
+    /**
+     * Returns the total number of tasks that have had to wait to be
+     * admitted since the service started.
+     *
+     * @return the number of deferred tasks
+     */
+    long getTotalDeferred();
+
+    /**
+     * Returns the total number of tasks rejected since the service
+     * started.
+     *
+     * @return the number of rejected tasks
+     */
+    long getTotalRejected();
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.List;
+
+
+/**
+ * A {@code TagReportListener} that can accept many reports at once. The
+ * {@code TagService} drains reports from its queue in batches, and passes
+ * each batch to listeners that implement this interface in a single call.
+ * Other listeners are called once for each report in the batch.
+ * <p>
+ * As with single reports, the reports in a batch are only valid until the
+ * call returns, unless they are retained as described in
+ * {@link TagReport}. The list itself is re-used for later batches, so it
+ * must not be kept or modified.
+ */
+public interface BatchTagReportListener extends TagReportListener {
+
+    /**
+     * Notifies the listener that a batch of tagged tasks have completed,
+     * in the order that the reports were queued.
+     *
+     * @param tagReports the reports for the tagged tasks
+     */
+    void report(List<TagReport> tagReports);
+
+}
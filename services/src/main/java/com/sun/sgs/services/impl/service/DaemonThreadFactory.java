@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.concurrent.ThreadFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A {@code ThreadFactory} that creates daemon threads, named with a common
+ * prefix and a sequence number, for the threads owned by these services.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    // the prefix for all thread names
+    private final String prefix;
+
+    // the number of threads created so far
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Creates an instance of {@code DaemonThreadFactory}.
+     *
+     * @param prefix the prefix for the names of created threads
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /** {@inheritDoc} */
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
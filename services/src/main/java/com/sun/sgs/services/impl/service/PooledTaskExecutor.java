@@ -0,0 +1,357 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import com.sun.sgs.app.TaskRejectedException;
+
+import com.sun.sgs.auth.Identity;
+
+import com.sun.sgs.kernel.KernelRunnable;
+import com.sun.sgs.kernel.TaskReservation;
+
+import com.sun.sgs.services.app.AsyncPrioritizedTask;
+import com.sun.sgs.services.app.AsyncTaskPriority;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An implementation of {@code AsyncTaskExecutor} that runs tasks on a
+ * dedicated, bounded pool of threads rather than on the threads owned by
+ * the kernel's schedulers. This keeps long-running, blocking tasks from
+ * competing with transactional tasks.
+ * <p>
+ * The number of tasks that may be outstanding at any time is the maximum
+ * number of threads plus the size of the queue. Each reservation holds
+ * one of these slots until the task finishes running or the reservation
+ * is cancelled, so a task that is reserved is always able to run once the
+ * reservation is used.
+ * <p>
+ * Tasks waiting for a thread are ordered by their
+ * {@code AsyncTaskPriority}. To keep lower priority tasks from starving,
+ * each task is given a deadline when it is queued: its queue time plus a
+ * fixed aging delay for each step below {@code HIGH} priority. Tasks are
+ * started in order of deadline, so a {@code LOW} priority task queued at
+ * time {@code t} is started ahead of any task, of any priority, queued
+ * after {@code t} plus twice the aging delay.
+ * <p>
+ * On JVMs that support virtual threads, an instance can instead be backed
+ * by an executor that starts a new virtual thread for each task. In that
+ * case there is no pool to size or queue to order, and only the number of
+ * outstanding tasks is bounded.
+ */
+class PooledTaskExecutor implements AsyncTaskExecutor {
+
+    private static final Logger logger =
+        Logger.getLogger(PooledTaskExecutor.class.getName());
+
+    // the backing pool of threads
+    private final ExecutorService executor;
+
+    // the available slots for outstanding tasks
+    private final Semaphore permits;
+
+    // the delay in nanoseconds for each step below the highest priority
+    private final long agingDelay;
+
+    // the order in which tasks were queued, used to break ties
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * Creates an instance of {@code PooledTaskExecutor}.
+     *
+     * @param coreThreads the number of threads to keep in the pool
+     * @param maxThreads the maximum number of threads in the pool
+     * @param queueSize the number of tasks that may wait for a thread
+     * @param keepAlive the time in milliseconds that threads beyond the
+     *                  core number may stay idle before exiting
+     * @param agingDelay the time in milliseconds that a queued task may be
+     *                   passed by tasks one step higher in priority
+     *
+     * @throws IllegalArgumentException if any of the parameters are invalid
+     */
+    PooledTaskExecutor(int coreThreads, int maxThreads, int queueSize,
+                       long keepAlive, long agingDelay)
+    {
+        if ((coreThreads < 0) || (maxThreads < 1) ||
+            (coreThreads > maxThreads))
+        {
+            throw new IllegalArgumentException("Invalid thread counts: " +
+                                               coreThreads + ", " +
+                                               maxThreads);
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be positive");
+        }
+        if (keepAlive < 0) {
+            throw new IllegalArgumentException("Keep-alive must not be " +
+                                               "negative");
+        }
+        if (agingDelay < 0) {
+            throw new IllegalArgumentException("Aging delay must not be " +
+                                               "negative");
+        }
+
+        this.executor =
+            new ThreadPoolExecutor(coreThreads, maxThreads, keepAlive,
+                                   TimeUnit.MILLISECONDS,
+                                   new BoundedPriorityQueue(queueSize),
+                                   new DaemonThreadFactory
+                                   ("AsyncTaskService-pool-"),
+                                   new RequeuePolicy());
+        this.permits = new Semaphore(maxThreads + queueSize);
+        this.agingDelay = TimeUnit.MILLISECONDS.toNanos(agingDelay);
+    }
+
+    /**
+     * Creates an instance of {@code PooledTaskExecutor} that runs tasks on
+     * the given executor, which must not block or reject when asked to
+     * run a task.
+     *
+     * @param executor the backing {@code ExecutorService}
+     * @param maxTasks the maximum number of outstanding tasks
+     *
+     * @throws IllegalArgumentException if {@code maxTasks} is not positive
+     */
+    PooledTaskExecutor(ExecutorService executor, int maxTasks) {
+        if (maxTasks < 1) {
+            throw new IllegalArgumentException("Maximum tasks must be " +
+                                               "positive");
+        }
+        this.executor = executor;
+        this.permits = new Semaphore(maxTasks);
+        this.agingDelay = 0;
+    }
+
+    /**
+     * Returns an {@code ExecutorService} that runs each task on its own
+     * virtual thread, or {@code null} if the JVM does not support virtual
+     * threads. Reflection is used so that this class still builds and runs
+     * on JVMs that predate virtual threads.
+     *
+     * @return a virtual thread per-task executor, or {@code null}
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, Long.TYPE).
+                invoke(builder, "AsyncTaskService-virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory)
+                (builderClass.getMethod("factory").invoke(builder));
+            Method m = Executors.class.
+                getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) (m.invoke(null, factory));
+        } catch (Exception e) {
+            // either the methods don't exist or virtual threads are
+            // present but not enabled (e.g., as a preview feature)
+            logger.log(Level.FINE, "Virtual threads are unavailable", e);
+            return null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public TaskReservation reserveTask(KernelRunnable task, Identity owner) {
+        if (executor.isShutdown()) {
+            throw new IllegalStateException("Executor is shutdown");
+        }
+        if (! permits.tryAcquire()) {
+            throw new TaskRejectedException("Too many outstanding " +
+                                            "asynchronous tasks");
+        }
+        return new PooledReservation(task);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tryExecute(KernelRunnable task, Identity owner) {
+        if (executor.isShutdown() || (! permits.tryAcquire())) {
+            return false;
+        }
+        executor.execute(new QueuedTask(task));
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public int getQueuedTasks() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        // an executor without a pool starts a thread for every task
+        return 0;
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the priority of the given task, which is
+     * {@code AsyncTaskPriority.NORMAL} unless the task implements
+     * {@code AsyncPrioritizedTask}.
+     *
+     * @param task the task
+     *
+     * @return the priority of the task
+     */
+    static AsyncTaskPriority priorityOf(Object task) {
+        if (task instanceof AsyncPrioritizedTask) {
+            AsyncTaskPriority priority =
+                ((AsyncPrioritizedTask) task).getPriority();
+            if (priority != null) {
+                return priority;
+            }
+        }
+        return AsyncTaskPriority.NORMAL;
+    }
+
+    /** A reservation that holds a slot until its task has run. */
+    private class PooledReservation implements TaskReservation {
+        private final KernelRunnable task;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        PooledReservation(KernelRunnable task) {
+            this.task = task;
+        }
+        /** {@inheritDoc} */
+        public void cancel() {
+            if (! finished.compareAndSet(false, true)) {
+                throw new IllegalStateException("Reservation already used " +
+                                                "or cancelled");
+            }
+            permits.release();
+        }
+        /** {@inheritDoc} */
+        public void use() {
+            if (! finished.compareAndSet(false, true)) {
+                throw new IllegalStateException("Reservation already used " +
+                                                "or cancelled");
+            }
+            executor.execute(new QueuedTask(task));
+        }
+    }
+
+    /**
+     * A task handed to the backing executor, ordered by its deadline and
+     * then by the order in which tasks were queued.
+     */
+    private class QueuedTask implements Runnable, Comparable<QueuedTask> {
+        private final KernelRunnable task;
+        private final long deadline;
+        private final long seq;
+        QueuedTask(KernelRunnable task) {
+            this.task = task;
+            this.deadline = System.nanoTime() +
+                (priorityOf(task).ordinal() * agingDelay);
+            this.seq = sequence.getAndIncrement();
+        }
+        /** {@inheritDoc} */
+        public void run() {
+            runTask(task);
+        }
+        /** {@inheritDoc} */
+        public int compareTo(QueuedTask other) {
+            // compare the difference, since nanoTime may wrap
+            long diff = deadline - other.deadline;
+            if (diff != 0) {
+                return (diff < 0) ? -1 : 1;
+            }
+            return (seq < other.seq) ? -1 : ((seq == other.seq) ? 0 : 1);
+        }
+    }
+
+    /** Runs a task and then releases the slot that it held. */
+    private void runTask(KernelRunnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "Asynchronous task " +
+                           task.getBaseTaskType() + " failed", t);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * A priority queue that refuses offers once it holds the given number
+     * of tasks, so that the pool starts threads beyond its core size just
+     * as it would with a bounded FIFO queue. Tasks that are put on the
+     * queue are always accepted.
+     */
+    private static class BoundedPriorityQueue
+        extends PriorityBlockingQueue<Runnable>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        BoundedPriorityQueue(int capacity) {
+            this.capacity = capacity;
+        }
+        /** {@inheritDoc} */
+        public boolean offer(Runnable r) {
+            if (size() >= capacity) {
+                return false;
+            }
+            return super.offer(r);
+        }
+        /** {@inheritDoc} */
+        public void put(Runnable r) {
+            super.offer(r);
+        }
+    }
+
+    /**
+     * Handles the window where a worker has released its slot but has not
+     * yet returned to the queue, so the pool briefly looks saturated even
+     * though the task held a valid reservation. The task is put back on
+     * the queue, which will have space as soon as that worker polls it.
+     */
+    private static class RequeuePolicy implements RejectedExecutionHandler {
+        /** {@inheritDoc} */
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (e.isShutdown()) {
+                logger.log(Level.FINE, "Dropping task after shutdown");
+                return;
+            }
+            try {
+                e.getQueue().put(r);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.WARNING, "Interrupted re-queueing task");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.Collection;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded, lock-free ring buffer for many producers and a single
+ * consumer. Each slot has a sequence number that tells producers and the
+ * consumer whether the slot is free to fill or ready to take, so adding
+ * and taking an element only needs a single compare-and-set, and no
+ * memory is allocated once the buffer is created.
+ * <p>
+ * When the buffer is full, an element is handled according to the
+ * {@code OverflowPolicy}: it may be dropped, the oldest element may be
+ * dropped to make room for it, or the producer may wait briefly for room
+ * before dropping it. Dropped elements are counted, and are passed to a
+ * {@code DropHandler} so that any resources they hold can be released. To
+ * drop the oldest element a producer takes it like the consumer would,
+ * so taking an element is safe for concurrent callers, but only one
+ * thread should wait for elements with {@code take}.
+ * <p>
+ * The buffer may be closed, after which a consumer waiting in {@code take}
+ * returns once the buffer is empty. Closing does not stop elements being
+ * added; callers are expected to stop producing first.
+ * <p>
+ * The consumer waits for elements according to the {@code WaitStrategy}.
+ * Blocking has the least overhead when the buffer is often empty, while
+ * spinning and parking avoid the cost of signalling at the price of
+ * keeping a processor busy.
+ *
+ * @param <E> the type of elements in the buffer
+ */
+final class RingBuffer<E> {
+
+    /** The ways that the consumer may wait for an element. */
+    enum WaitStrategy {
+        /** Block until a producer signals that an element is ready. */
+        BLOCKING,
+        /** Spin, yielding the processor, until an element is ready. */
+        SPINNING,
+        /** Park for a short time between checks for an element. */
+        PARKING
+    }
+
+    /** A handler for elements that are dropped when the buffer is full. */
+    interface DropHandler<E> {
+        /**
+         * Called with each element that is dropped, on the thread that
+         * was adding an element.
+         *
+         * @param element the dropped element
+         */
+        void dropped(E element);
+    }
+
+    /** The ways to handle an element when the buffer is full. */
+    enum OverflowPolicy {
+        /** Drop the element being added. */
+        DROP_NEWEST,
+        /** Drop the oldest element in the buffer to make room. */
+        DROP_OLDEST,
+        /** Wait briefly for room, and then drop the element being added. */
+        BLOCK
+    }
+
+    // the time that a waiting thread parks between checks
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // the next position to fill and the next position to take
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockNanos;
+
+    // the lock and condition used by the blocking strategy, where the
+    // flag is set while the consumer is waiting so that producers only
+    // take the lock when there is someone to signal
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerWaiting = false;
+
+    // whether the buffer has been closed
+    private volatile boolean closed = false;
+
+    private final DropHandler<? super E> dropHandler;
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    /**
+     * Creates an instance of {@code RingBuffer}.
+     *
+     * @param capacity the minimum number of elements the buffer can hold,
+     *                 which is rounded up to a power of two
+     * @param waitStrategy how the consumer waits for elements
+     * @param overflowPolicy how elements are handled when the buffer is full
+     * @param blockTime the time in milliseconds that a producer waits for
+     *                  room under the {@code BLOCK} policy
+     * @param dropHandler the handler for dropped elements, or {@code null}
+     *
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     *                                  or too large, or {@code blockTime}
+     *                                  is negative
+     */
+    RingBuffer(int capacity, WaitStrategy waitStrategy,
+               OverflowPolicy overflowPolicy, long blockTime,
+               DropHandler<? super E> dropHandler)
+    {
+        if ((capacity < 1) || (capacity > (1 << 30))) {
+            throw new IllegalArgumentException("Invalid capacity: " +
+                                               capacity);
+        }
+        if (blockTime < 0) {
+            throw new IllegalArgumentException("Block time must not be " +
+                                               "negative");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockTime);
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Adds an element, handling it according to the overflow policy if
+     * the buffer is full.
+     *
+     * @param element the element to add
+     *
+     * @return {@code true} if the element was added, or {@code false} if
+     *         it was dropped
+     */
+    boolean add(E element) {
+        if (element == null) {
+            throw new NullPointerException("Element must not be null");
+        }
+        if (tryAdd(element)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+        case DROP_OLDEST:
+            // each pass frees a slot, though another producer may fill it
+            // before this one can
+            do {
+                E oldest = poll();
+                if (oldest != null) {
+                    drop(oldest);
+                }
+            } while (! tryAdd(element));
+            return true;
+        case BLOCK:
+            long deadline = System.nanoTime() + blockNanos;
+            while (deadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(PARK_NANOS);
+                if (tryAdd(element)) {
+                    return true;
+                }
+            }
+            drop(element);
+            return false;
+        case DROP_NEWEST:
+        default:
+            drop(element);
+            return false;
+        }
+    }
+
+    /**
+     * Takes the oldest element, if there is one.
+     *
+     * @return the oldest element, or {@code null} if the buffer is empty
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    // the slot may be filled again one lap later
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Takes up to the given number of elements, oldest first, without
+     * waiting.
+     *
+     * @param collection the collection to add the elements to
+     * @param maxElements the maximum number of elements to take
+     *
+     * @return the number of elements taken
+     */
+    int drainTo(Collection<? super E> collection, int maxElements) {
+        int count = 0;
+        while (count < maxElements) {
+            E element = poll();
+            if (element == null) {
+                break;
+            }
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes the oldest element, waiting according to the wait strategy
+     * until one is available or the buffer is closed. This must only be
+     * called by the consumer.
+     *
+     * @return the oldest element, or {@code null} if the buffer is closed
+     *         and empty
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     *                              while waiting
+     */
+    E take() throws InterruptedException {
+        while (true) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                // check once more, since an element may have been added
+                // just before the buffer was closed
+                return poll();
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            switch (waitStrategy) {
+            case SPINNING:
+                Thread.yield();
+                break;
+            case PARKING:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+            case BLOCKING:
+            default:
+                awaitElement();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Closes the buffer, waking the consumer if it is waiting. Elements
+     * that are already in the buffer may still be taken.
+     */
+    void close() {
+        closed = true;
+        signalConsumer();
+    }
+
+    /**
+     * Returns whether the buffer is empty. This is only a snapshot when
+     * other threads are adding or taking elements.
+     *
+     * @return {@code true} if the buffer is empty
+     */
+    boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) != pos + 1;
+    }
+
+    /**
+     * Returns the number of elements in the buffer. This is only an
+     * estimate when other threads are adding or taking elements.
+     *
+     * @return the number of elements
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * Returns the number of elements that this buffer can hold.
+     *
+     * @return the capacity
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of elements dropped because the buffer was full.
+     *
+     * @return the dropped count
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /* Private methods. */
+
+    /** Tries to add an element, returning false if the buffer is full. */
+    private boolean tryAdd(E element) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.set(index, element);
+                    // publish the element to the consumer
+                    sequences.set(index, pos + 1);
+                    if (consumerWaiting) {
+                        signalConsumer();
+                    }
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** Counts a dropped element and passes it to the handler. */
+    private void drop(E element) {
+        droppedCount.incrementAndGet();
+        if (dropHandler != null) {
+            dropHandler.dropped(element);
+        }
+    }
+
+    /** Waits for a producer to signal that an element is available. */
+    private void awaitElement() throws InterruptedException {
+        lock.lock();
+        try {
+            consumerWaiting = true;
+            // check again now that producers will signal, so that an
+            // element added before the flag was seen is not missed
+            if (isEmpty() && (! closed)) {
+                notEmpty.await();
+            }
+        } finally {
+            consumerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    /** Wakes the consumer if it is waiting. */
+    private void signalConsumer() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
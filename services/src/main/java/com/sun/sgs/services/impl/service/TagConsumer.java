@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+
+/**
+ * A callback used to visit the tags in a {@code TagReport} without boxing
+ * the tag identifiers.
+ *
+ * @see TagReport#forEachTag
+ */
+public interface TagConsumer {
+
+    /**
+     * Called once for each tag in a report, in the order that the tags
+     * were applied.
+     *
+     * @param tag the identifier of the tag
+     * @param tagValue the value associated with the tag, or {@code null}
+     *                 if no value was associated with the tag
+     */
+    void consume(long tag, Object tagValue);
+
+}
@@ -28,6 +28,14 @@ import java.util.Collection;
 
 /**
  * Details about a single task that was tagged through the {@code TaskManager}.
+ * <p>
+ * Reports are recycled once every listener is done with them, so a report
+ * is only valid for the duration of the call that delivers it to a
+ * {@code TagReportListener}. A listener that keeps a report after that
+ * call returns must first call {@code retain}, and must call
+ * {@code release} exactly once for each call to {@code retain} when it
+ * no longer needs the report. A report must not be used after it has
+ * been released.
  */
 public interface TagReport {
 
@@ -50,16 +58,39 @@ public interface TagReport {
     long getTransactionStartTime();
 
     /**
-     * Returns the tags that were applied to the task.
+     * Returns the tags that were applied to the task. Listeners that visit
+     * every tag should prefer {@code getTagArray} or {@code forEachTag},
+     * which do not box the tag identifiers.
      *
      * @return a {@code Collection} of reported tag identifiers
      */
     Collection<Long> getTags();
 
+    /**
+     * Returns the tags that were applied to the task, in the order that
+     * they were applied. The returned array is a copy that the caller
+     * may keep or modify.
+     *
+     * @return an array of reported tag identifiers
+     */
+    long [] getTagArray();
+
+    /**
+     * Calls the given consumer once with each tag that was applied to the
+     * task and its value, in the order that the tags were applied. If the
+     * consumer is a {@code TypedTagConsumer}, then {@code long} and
+     * {@code double} values are passed to it without boxing.
+     *
+     * @param consumer the {@code TagConsumer} to call
+     */
+    void forEachTag(TagConsumer consumer);
+
     /**
      * Returns the value associated with the given tag. This may return
      * {@code null} if no value was associated with the tag or if this
-     * tag identifier was not applied to the task.
+     * tag identifier was not applied to the task. Values that were applied
+     * as a {@code long} or {@code double} are returned boxed, so listeners
+     * should prefer the typed getters for them.
      *
      * @param tag identifier of a tag
      *
@@ -68,4 +99,86 @@ public interface TagReport {
      */
     Object getTagValue(long tag);
 
+    /**
+     * Returns the type of the value associated with the given tag, which
+     * defines the typed getter that may be used to read it.
+     *
+     * @param tag identifier of a tag
+     *
+     * @return the type of the value, or {@code NONE} if no value was
+     *         associated with the tag or the tag was never applied
+     */
+    TagValueType getTagValueType(long tag);
+
+    /**
+     * Returns the {@code long} value associated with the given tag.
+     *
+     * @param tag identifier of a tag
+     *
+     * @return the value associated with the tag
+     *
+     * @throws IllegalArgumentException if the tag's value is not of type
+     *                                  {@code LONG}
+     */
+    long getLongTagValue(long tag);
+
+    /**
+     * Returns the {@code double} value associated with the given tag.
+     *
+     * @param tag identifier of a tag
+     *
+     * @return the value associated with the tag
+     *
+     * @throws IllegalArgumentException if the tag's value is not of type
+     *                                  {@code DOUBLE}
+     */
+    double getDoubleTagValue(long tag);
+
+    /**
+     * Returns the {@code String} value associated with the given tag.
+     *
+     * @param tag identifier of a tag
+     *
+     * @return the value associated with the tag
+     *
+     * @throws IllegalArgumentException if the tag's value is not of type
+     *                                  {@code STRING}
+     */
+    String getStringTagValue(long tag);
+
+    /**
+     * Returns the number of applications of the given tag that this report
+     * represents. This is one unless the {@code TagService} is sampling
+     * transactions or tags at random, in which case it is the inverse of
+     * the probability that this application was reported, so that summing
+     * the weights of the reports gives an unbiased estimate of the number
+     * of times the tag was applied. Tags that are limited to a fixed rate
+     * are not weighted for the applications that were not reported.
+     *
+     * @param tag identifier of a tag
+     *
+     * @return the weight of the tag, or {@code 0} if the tag was never
+     *         applied
+     */
+    double getTagWeight(long tag);
+
+    /**
+     * Keeps this report from being recycled until a matching call to
+     * {@code release}.
+     *
+     * @throws IllegalStateException if the report has already been
+     *                               recycled
+     */
+    void retain();
+
+    /**
+     * Releases a reference to this report that was taken with
+     * {@code retain}. Once all references have been released the report
+     * may be recycled.
+     *
+     * @throws IllegalStateException if the report has already been
+     *                               recycled
+     */
+    void release();
+
 }
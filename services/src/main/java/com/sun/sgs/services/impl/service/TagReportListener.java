@@ -32,6 +32,11 @@ package com.sun.sgs.services.impl.service;
  * work required to process any given report so that they do not block
  * other listeners or the progress of the stream of all reports.
  * <p>
+ * A report is only valid until {@code report} returns, after which it may
+ * be recycled for another transaction. Listeners that hold on to reports,
+ * for instance to write them in batches, must follow the reference
+ * counting contract described in {@link TagReport}.
+ * <p>
  * All implementations of {@code TagReportListener} must have a constructor
  * with two parameters: {@code Properties} and {@code long}. The first
  * parameter provides access to the properties used to start the local node
@@ -54,6 +59,10 @@ public interface TagReportListener {
      * connections. Note that in cases of node failure, this method may
      * not be called, so implementors should not assume that they will always
      * have a chance to perform this graceful shutdown.
+     * <p>
+     * No more reports are delivered once this method is called, so any
+     * reports that the listener is still holding should be written out
+     * or released here.
      */
     void shutdown();
 
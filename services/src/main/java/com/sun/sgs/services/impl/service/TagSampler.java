@@ -0,0 +1,198 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.Random;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Decides which applications of each tag are reported, so that a tag
+ * applied at a high rate does not overwhelm the report listeners. The
+ * decision is made when the tag is applied, before any report is created.
+ * <p>
+ * Each tag has a count of its applications in the current second. In
+ * {@code RESERVOIR} mode, the first {@code limit} applications in a second
+ * are kept, and the {@code n}th after that is kept with probability
+ * {@code limit / n}, as when filling a reservoir sample. Each kept
+ * application is given a weight of {@code 1 / p}, where {@code p} is the
+ * probability it was kept, so that summing the weights gives an unbiased
+ * estimate of the true count. In {@code RATE} mode, only the first
+ * {@code limit} applications in a second are kept, each with a weight of
+ * one, which bounds the load but under-counts busy tags.
+ * <p>
+ * The counts are kept in a fixed-size, lock-free, open-addressing table
+ * keyed by tag. Tags that do not fit in the table share a single count.
+ * Counts that race with the start of a new second may be lost, so the
+ * limits are approximate.
+ */
+final class TagSampler {
+
+    /** The ways of choosing which tag applications are kept. */
+    enum Mode {
+        /** Keep a random sample of each tag, weighted to be unbiased. */
+        RESERVOIR,
+        /** Keep at most a fixed number of each tag per second. */
+        RATE
+    }
+
+    // the number of slots probed before a tag shares the overflow count
+    private static final int MAX_PROBES = 16;
+
+    // the states of a slot in the table
+    private static final int EMPTY = 0;
+    private static final int CLAIMING = 1;
+    private static final int READY = 2;
+
+    private final Mode mode;
+    private volatile int limit;
+
+    // the table of tags, where the last entry of the count arrays is the
+    // overflow count shared by tags that do not fit
+    private final int mask;
+    private final AtomicIntegerArray states;
+    private final AtomicLongArray tags;
+    private final AtomicLongArray seconds;
+    private final AtomicLongArray counts;
+
+    /**
+     * Creates an instance of {@code TagSampler}.
+     *
+     * @param mode how tag applications are chosen
+     * @param limit the number of applications of each tag kept, or kept
+     *              without sampling, each second
+     * @param tableSize the minimum number of tags that can be tracked,
+     *                  which is rounded up to a power of two
+     *
+     * @throws IllegalArgumentException if {@code limit} or
+     *                                  {@code tableSize} is not positive
+     */
+    TagSampler(Mode mode, int limit, int tableSize) {
+        if ((tableSize < 1) || (tableSize > (1 << 30))) {
+            throw new IllegalArgumentException("Invalid table size: " +
+                                               tableSize);
+        }
+        setLimit(limit);
+        int size = Integer.highestOneBit(tableSize);
+        if (size < tableSize) {
+            size <<= 1;
+        }
+        this.mode = mode;
+        this.mask = size - 1;
+        this.states = new AtomicIntegerArray(size);
+        this.tags = new AtomicLongArray(size);
+        this.seconds = new AtomicLongArray(size + 1);
+        this.counts = new AtomicLongArray(size + 1);
+    }
+
+    /**
+     * Returns the number of applications of each tag kept, or kept without
+     * sampling, each second.
+     *
+     * @return the limit
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the number of applications of each tag kept, or kept without
+     * sampling, each second.
+     *
+     * @param limit the limit
+     *
+     * @throws IllegalArgumentException if {@code limit} is not positive
+     */
+    void setLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Decides whether an application of the given tag is kept.
+     *
+     * @param tag the tag
+     * @param random the calling thread's source of random numbers
+     *
+     * @return the weight of the application if it is kept, or {@code 0}
+     *         if it is not
+     */
+    double sample(long tag, Random random) {
+        int slot = findSlot(tag);
+        long second = System.currentTimeMillis() / 1000;
+        long slotSecond = seconds.get(slot);
+        if ((slotSecond != second) &&
+            seconds.compareAndSet(slot, slotSecond, second))
+        {
+            counts.set(slot, 0);
+        }
+        long count = counts.incrementAndGet(slot);
+        int currentLimit = limit;
+        if (count <= currentLimit) {
+            return 1.0;
+        }
+        if (mode == Mode.RATE) {
+            return 0.0;
+        }
+        double probability = currentLimit / (double) count;
+        return (random.nextDouble() < probability) ? (1.0 / probability) : 0.0;
+    }
+
+    /* Private methods. */
+
+    /** Returns the slot for the given tag, claiming one if needed. */
+    private int findSlot(long tag) {
+        int slot = hash(tag) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int state = states.get(slot);
+            if (state == EMPTY) {
+                if (states.compareAndSet(slot, EMPTY, CLAIMING)) {
+                    tags.set(slot, tag);
+                    states.set(slot, READY);
+                    return slot;
+                }
+                state = states.get(slot);
+            }
+            // wait out the brief window while another thread claims it
+            while (state == CLAIMING) {
+                Thread.yield();
+                state = states.get(slot);
+            }
+            if (tags.get(slot) == tag) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return mask + 1;
+    }
+
+    /** Mixes the bits of a tag, since tags are often sequential. */
+    private static int hash(long tag) {
+        tag ^= tag >>> 33;
+        tag *= 0xff51afd7ed558ccdL;
+        tag ^= tag >>> 33;
+        return (int) tag;
+    }
+
+}
@@ -29,24 +29,37 @@ import com.sun.sgs.service.TransactionProxy;
 
 import com.sun.sgs.services.app.TagManager;
 
+import java.lang.management.ManagementFactory;
+
 import java.lang.reflect.Constructor;
 
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 
 /**
  * {@code Service} implementation of the {@code TagManager} interface that
@@ -59,6 +72,44 @@ import java.util.logging.Logger;
  * By default, the service will only generate reports for tasks that commit.
  * This behavior is defined by the {@code REPORT_ON_COMMIT_PROPERTY}. If
  * that property is set to "false" then any tagged task will be reported.
+ * <p>
+ * Reports are pooled, so that tagging a transaction does not normally
+ * allocate any new objects. Each report is also the listener for its
+ * transaction, and is returned to the pool once every listener has
+ * released it. The size of the pool is defined by the
+ * {@code REPORT_POOL_SIZE_PROPERTY}.
+ * <p>
+ * Each listener has its own consumer thread, which is passed completed
+ * reports through a bounded, lock-free ring buffer whose size is defined
+ * by the {@code REPORT_QUEUE_SIZE_PROPERTY}. A slow listener therefore
+ * only delays its own reports, and once its buffer is full its reports
+ * are dropped without affecting other listeners. The
+ * {@code REPORT_WAIT_PROPERTY} chooses how consumers wait for reports,
+ * and the {@code REPORT_OVERFLOW_PROPERTY} chooses what happens to a
+ * report when a buffer is full. Each consumer takes as many reports as
+ * are available, up to the {@code REPORT_BATCH_SIZE_PROPERTY}, and passes
+ * them to a {@code BatchTagReportListener} in a single call. The queued,
+ * delivered and dropped counts and delivery lag of each listener are
+ * available through the {@link TagServiceMXBean}.
+ * <p>
+ * To reduce the cost of tagging under heavy load, reports may be sampled.
+ * The {@code SAMPLE_RATE_PROPERTY} reports only one in every given number
+ * of tagged transactions, counted on each thread. The
+ * {@code SAMPLE_TAG_MODE_PROPERTY} additionally limits how often each tag
+ * is reported per second, either by sampling at random ("reservoir") or by
+ * keeping only the first applications ("rate"), as described by
+ * {@code TagSampler}. Both decisions are made when a tag is applied, so
+ * transactions and tags that are not reported cost no more than a few
+ * checks. Reports give the weight of each sampled tag, and both rates can
+ * be changed at runtime through the {@code TagServiceMXBean}. Note that
+ * duplicate tags are only detected among the tags that are reported.
+ * <p>
+ * When the service is shut down it stops accepting tags and reports, and
+ * each consumer delivers the reports left in its queue, in batches, until
+ * the queue is empty or the time defined by the
+ * {@code SHUTDOWN_TIMEOUT_PROPERTY} has passed. Any reports still queued
+ * at that point are dropped. Each listener is then shut down, and the
+ * number of reports flushed and dropped for each listener is logged.
  */
 public class TagService implements TagManager, Service {
 
@@ -71,31 +122,32 @@ public class TagService implements TagManager, Service {
     // state bit for the service's current status
     private final AtomicBoolean isShutdown = new AtomicBoolean(false);
 
-    // local state for the current thread, also the transaction listener
-    private final ThreadLocal<TagReportImpl> localTagReport =
-        new ThreadLocal<TagReportImpl>() {
-            protected TagReportImpl initialValue() {
-                Transaction txn = proxy.getCurrentTransaction();
-                TagReportImpl report =
-                    new TagReportImpl(txn.getId(), txn.getCreationTime());
-                txn.registerListener(new TagTransactionListener(report));
-                return report;
+    // the slot for the current thread's report, which is kept for the
+    // life of the thread so that it is never re-created
+    private final ThreadLocal<ReportSlot> localSlot =
+        new ThreadLocal<ReportSlot>() {
+            protected ReportSlot initialValue() {
+                return new ReportSlot();
             }
         };
 
-    // the queue of pending reports
-    private final BlockingQueue<TagReport> reportQueue;
+    // the reports that are available for re-use
+    private final BlockingQueue<TagReportImpl> reportPool;
+
+    // the channels that pass reports to each listener, kept as an array
+    // so that reporting does not allocate an iterator
+    private final ListenerChannel [] channels;
 
-    // the thread used to consume available reports
-    private final Thread consumerThread;
+    // the local node's identifier
+    private final long nodeId;
+
+    // the name of the management bean, set once it has been registered
+    private ObjectName mxbeanName = null;
 
     /** Property key used to define a colon-separated list of listeners. */
     public static final String REPORT_LISTENERS_PROPERTY =
         NAME + ".report.listeners";
 
-    // the collection of listeners
-    private Set<TagReportListener> reportListeners;
-
     /** Property key used to specify if reports only happen on commit. */
     public static final String REPORT_ON_COMMIT_PROPERTY =
         NAME + "report.on.commit";
@@ -106,6 +158,107 @@ public class TagService implements TagManager, Service {
     // a flag indicating if reports are only made for committing transactions
     private final boolean onlyReportOnCommit;
 
+    /** Property key used to define how many idle reports are pooled. */
+    public static final String REPORT_POOL_SIZE_PROPERTY =
+        NAME + ".report.pool.size";
+
+    /** Default value for the report.pool.size property. */
+    public static final String REPORT_POOL_SIZE_DEFAULT = "1024";
+
+    /** Property key used to define how many reports may be queued. */
+    public static final String REPORT_QUEUE_SIZE_PROPERTY =
+        NAME + ".report.queue.size";
+
+    /** Default value for the report.queue.size property. */
+    public static final String REPORT_QUEUE_SIZE_DEFAULT = "65536";
+
+    /**
+     * Property key used to define how the consumer waits for reports:
+     * "blocking", "spinning" or "parking".
+     */
+    public static final String REPORT_WAIT_PROPERTY = NAME + ".report.wait";
+
+    /** Default value for the report.wait property. */
+    public static final String REPORT_WAIT_DEFAULT = "blocking";
+
+    /**
+     * Property key used to define what happens to a report when the queue
+     * is full: "drop-newest", "drop-oldest" or "block".
+     */
+    public static final String REPORT_OVERFLOW_PROPERTY =
+        NAME + ".report.overflow";
+
+    /** Default value for the report.overflow property. */
+    public static final String REPORT_OVERFLOW_DEFAULT = "drop-newest";
+
+    /** Property key used to define how long a blocked report waits in ms. */
+    public static final String REPORT_BLOCK_TIME_PROPERTY =
+        NAME + ".report.block.time";
+
+    /** Default value for the report.block.time property. */
+    public static final String REPORT_BLOCK_TIME_DEFAULT = "10";
+
+    /** Property key used to define the most reports delivered at once. */
+    public static final String REPORT_BATCH_SIZE_PROPERTY =
+        NAME + ".report.batch.size";
+
+    /** Default value for the report.batch.size property. */
+    public static final String REPORT_BATCH_SIZE_DEFAULT = "256";
+
+    // the most reports delivered to listeners at once
+    private final int batchSize;
+
+    /** Property key used to define the transaction sampling rate. */
+    public static final String SAMPLE_RATE_PROPERTY = NAME + ".sample.rate";
+
+    /** Default value for the sample.rate property, reporting everything. */
+    public static final String SAMPLE_RATE_DEFAULT = "1";
+
+    /**
+     * Property key used to define how each tag is sampled: "none",
+     * "reservoir" or "rate".
+     */
+    public static final String SAMPLE_TAG_MODE_PROPERTY =
+        NAME + ".sample.tag.mode";
+
+    /** Default value for the sample.tag.mode property. */
+    public static final String SAMPLE_TAG_MODE_DEFAULT = "none";
+
+    /** Property key used to define the per-tag limit for each second. */
+    public static final String SAMPLE_TAG_LIMIT_PROPERTY =
+        NAME + ".sample.tag.limit";
+
+    /** Default value for the sample.tag.limit property. */
+    public static final String SAMPLE_TAG_LIMIT_DEFAULT = "100";
+
+    /** Property key used to define how many tags may be sampled. */
+    public static final String SAMPLE_TAG_TABLE_SIZE_PROPERTY =
+        NAME + ".sample.tag.table.size";
+
+    /** Default value for the sample.tag.table.size property. */
+    public static final String SAMPLE_TAG_TABLE_SIZE_DEFAULT = "4096";
+
+    /** Property key used to define how long shutdown may take in ms. */
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY =
+        NAME + ".shutdown.timeout";
+
+    /** Default value for the shutdown.timeout property. */
+    public static final String SHUTDOWN_TIMEOUT_DEFAULT = "5000";
+
+    // the time allowed for delivering queued reports at shutdown
+    private final long shutdownTimeout;
+
+    // one in this many tagged transactions is reported
+    private volatile int sampleRate;
+
+    // the sampler for individual tags, or null if tags are not sampled
+    private final TagSampler tagSampler;
+
+    // the results of admitTag for tags that are accepted without being
+    // recorded, and for tags that are refused
+    private static final double NOT_SAMPLED = 0.0;
+    private static final double REJECTED = -1.0;
+
     /** Create an instance of {@code TagService}. */
     public TagService(Properties p, ComponentRegistry registry,
                       TransactionProxy proxy)
@@ -117,11 +270,45 @@ public class TagService implements TagManager, Service {
                                                 REPORT_ON_COMMIT_DEFAULT);
         this.onlyReportOnCommit = Boolean.valueOf(commitOnlyString);
 
+        int poolSize =
+            Integer.parseInt(p.getProperty(REPORT_POOL_SIZE_PROPERTY,
+                                           REPORT_POOL_SIZE_DEFAULT));
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.reportPool = new ArrayBlockingQueue<TagReportImpl>(poolSize);
+
+        this.batchSize =
+            Integer.parseInt(p.getProperty(REPORT_BATCH_SIZE_PROPERTY,
+                                           REPORT_BATCH_SIZE_DEFAULT));
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        this.sampleRate =
+            Integer.parseInt(p.getProperty(SAMPLE_RATE_PROPERTY,
+                                           SAMPLE_RATE_DEFAULT));
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be " +
+                                               "positive");
+        }
+        this.tagSampler = createTagSampler(p);
+
+        this.shutdownTimeout =
+            Long.parseLong(p.getProperty(SHUTDOWN_TIMEOUT_PROPERTY,
+                                         SHUTDOWN_TIMEOUT_DEFAULT));
+        if (shutdownTimeout < 0) {
+            throw new IllegalArgumentException("Shutdown timeout must not " +
+                                               "be negative");
+        }
+
         // try to get the set of listeners
         String listenerList = p.getProperty(REPORT_LISTENERS_PROPERTY);
         if (listenerList != null) {
-            long nodeId = proxy.getService(DataService.class).getLocalNodeId();
-            reportListeners = new HashSet<TagReportListener>();
+            nodeId = proxy.getService(DataService.class).getLocalNodeId();
+            List<ListenerChannel> channelList =
+                new ArrayList<ListenerChannel>();
+            Set<String> channelNames = new HashSet<String>();
             for (String listenerName : listenerList.split(":")) {
                 try {
                     Class<?> listenerClass = Class.forName(listenerName);
@@ -131,7 +318,13 @@ public class TagService implements TagManager, Service {
                     TagReportListener listener =
                         (TagReportListener) (listenerConstructor.
                                              newInstance(p, nodeId));
-                    reportListeners.add(listener);
+                    // name each channel uniquely, for management
+                    String channelName = listenerName;
+                    for (int i = 2; ! channelNames.add(channelName); i++) {
+                        channelName = listenerName + "-" + i;
+                    }
+                    channelList.add(new ListenerChannel(channelName, listener,
+                                                        createReportQueue(p)));
                     logger.config("Loaded listener: " + listenerName);
                 } catch (Exception e) {
                     logger.log(Level.WARNING, "Could not construct listener: " +
@@ -140,15 +333,15 @@ public class TagService implements TagManager, Service {
             }
             // since there is at least one valid listener, finish
             // constructing the state for handling reports
-            this.reportQueue = new LinkedBlockingQueue<TagReport>();
-            this.consumerThread = new Thread(new ReportConsumerRunnable());
+            this.channels =
+                channelList.toArray(new ListenerChannel[channelList.size()]);
             logger.config("Finished creating Service");
         } else {
             // if there are no listeners, then just shutdown
             logger.config("No listeners specified; shutting down");
             isShutdown.set(true);
-            this.reportQueue = null;
-            this.consumerThread = null;
+            this.channels = new ListenerChannel[0];
+            this.nodeId = -1;
         }
     }
 
@@ -160,9 +353,22 @@ public class TagService implements TagManager, Service {
     }
 
     /** {@inheritDoc} */
-    public void ready() {
+    public void ready() throws Exception {
         if (! isShutdown.get()) {
-            consumerThread.start();
+            for (ListenerChannel channel : channels) {
+                channel.thread.start();
+            }
+            ObjectName name =
+                new ObjectName(TagServiceMXBean.MXBEAN_NAME +
+                               ",node=" + nodeId);
+            try {
+                ManagementFactory.getPlatformMBeanServer().
+                    registerMBean(new ManagementImpl(), name);
+                mxbeanName = name;
+            } catch (JMException jme) {
+                logger.log(Level.WARNING, "Could not register management " +
+                           "bean", jme);
+            }
             logger.config("Service is ready");
         }
     }
@@ -170,7 +376,36 @@ public class TagService implements TagManager, Service {
     /** {@inheritDoc} */
     public void shutdown() {
         if (isShutdown.compareAndSet(false, true)) {
-            consumerThread.interrupt();
+            // no more reports are queued once the flag is set, so let
+            // each consumer drain its queue in parallel until the deadline
+            long deadline = System.currentTimeMillis() + shutdownTimeout;
+            for (ListenerChannel channel : channels) {
+                channel.stop(deadline);
+            }
+            for (ListenerChannel channel : channels) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    if (remaining > 0) {
+                        channel.thread.join(remaining);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (channel.thread.isAlive()) {
+                    logger.warning("Listener " + channel.name + " did not " +
+                                   "finish before the shutdown deadline");
+                }
+            }
+            if (mxbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().
+                        unregisterMBean(mxbeanName);
+                } catch (JMException jme) {
+                    logger.log(Level.FINE, "Could not unregister " +
+                               "management bean", jme);
+                }
+            }
         }
     }
 
@@ -178,100 +413,463 @@ public class TagService implements TagManager, Service {
 
     /** {@inheritDoc} */
     public boolean tagTask(long tag) {
-        return tagTask(tag, null);
+        return tagTask(tag, (Object) null);
     }
 
     /** {@inheritDoc} */
     public boolean tagTask(long tag, Object tagValue) {
+        ReportSlot slot = localSlot.get();
+        double weight = admitTag(slot, tag);
+        if (weight <= 0.0) {
+            return weight == NOT_SAMPLED;
+        }
+        return slot.report.tagTable.put(tag, tagValue, weight);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, long tagValue) {
+        ReportSlot slot = localSlot.get();
+        double weight = admitTag(slot, tag);
+        if (weight <= 0.0) {
+            return weight == NOT_SAMPLED;
+        }
+        return slot.report.tagTable.putLong(tag, tagValue, weight);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, double tagValue) {
+        ReportSlot slot = localSlot.get();
+        double weight = admitTag(slot, tag);
+        if (weight <= 0.0) {
+            return weight == NOT_SAMPLED;
+        }
+        return slot.report.tagTable.putDouble(tag, tagValue, weight);
+    }
+
+    /** {@inheritDoc} */
+    public boolean tagTask(long tag, CharSequence tagValue) {
+        ReportSlot slot = localSlot.get();
+        double weight = admitTag(slot, tag);
+        if (weight <= 0.0) {
+            return weight == NOT_SAMPLED;
+        }
+        // take a snapshot, since the sequence may be mutable
+        String value = (tagValue == null) ? null : tagValue.toString();
+        return slot.report.tagTable.put(tag, value, weight);
+    }
+
+    /* Private utility methods */
+
+    /**
+     * Decides whether a tag should be recorded in the current transaction.
+     * If so, the slot's report is ready for the tag and the tag's weight
+     * is returned. Otherwise this returns {@code NOT_SAMPLED} if the tag
+     * is accepted but not recorded, or {@code REJECTED} if the service is
+     * shut down or the tag was already applied. Tags that are not recorded
+     * are still remembered for the transaction, so that they are only
+     * sampled once and applying them again is rejected.
+     */
+    private double admitTag(ReportSlot slot, long tag) {
         if (isShutdown.get()) {
-            return false;
+            return REJECTED;
+        }
+        Transaction txn = proxy.getCurrentTransaction();
+        if (txn != slot.txn) {
+            // this is the first tag in the transaction, so decide whether
+            // the transaction is sampled
+            slot.txn = txn;
+            slot.report = null;
+            int rate = sampleRate;
+            slot.skipped = (rate > 1) && ((slot.txnCount++ % rate) != 0);
+            slot.txnWeight = rate;
+        }
+        if (slot.sampledOut.contains(tag)) {
+            return REJECTED;
+        }
+        if (slot.skipped) {
+            return sampleOut(slot, txn, tag);
+        }
+        TagReportImpl report = slot.report;
+        if ((report != null) && report.tagTable.contains(tag)) {
+            return REJECTED;
+        }
+        double weight = 1.0;
+        if (tagSampler != null) {
+            weight = tagSampler.sample(tag, slot.random);
+            if (weight == 0.0) {
+                return sampleOut(slot, txn, tag);
+            }
+        }
+        if (report == null) {
+            slot.report = acquireReport(txn, slot.txnWeight);
+        }
+        return weight;
+    }
+
+    /**
+     * Remembers a tag that is not recorded in the current transaction and
+     * returns {@code NOT_SAMPLED}. The slot listens for the end of the
+     * transaction, so that it is cleared even if no report is ever made.
+     */
+    private static double sampleOut(ReportSlot slot, Transaction txn,
+                                    long tag)
+    {
+        if (! slot.listening) {
+            txn.registerListener(slot);
+            slot.listening = true;
+        }
+        slot.sampledOut.put(tag, null, 0.0);
+        return NOT_SAMPLED;
+    }
+
+    /** Creates the tag sampler defined by the properties, if any. */
+    private static TagSampler createTagSampler(Properties p) {
+        String mode = p.getProperty(SAMPLE_TAG_MODE_PROPERTY,
+                                    SAMPLE_TAG_MODE_DEFAULT);
+        if (mode.equals("none")) {
+            return null;
         }
-        TagReportImpl report = localTagReport.get();
-        if (report.tagMap.containsKey(tag)) {
-            return false;
+        TagSampler.Mode samplerMode;
+        try {
+            samplerMode = TagSampler.Mode.valueOf(toEnumName(mode));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Unknown tag sampling mode: " +
+                                               mode, iae);
+        }
+        int limit =
+            Integer.parseInt(p.getProperty(SAMPLE_TAG_LIMIT_PROPERTY,
+                                           SAMPLE_TAG_LIMIT_DEFAULT));
+        int tableSize =
+            Integer.parseInt(p.getProperty(SAMPLE_TAG_TABLE_SIZE_PROPERTY,
+                                           SAMPLE_TAG_TABLE_SIZE_DEFAULT));
+        logger.config("Sampling tags by " + mode + ", limit: " + limit);
+        return new TagSampler(samplerMode, limit, tableSize);
+    }
+
+    /** Creates the queue of completed reports defined by the properties. */
+    private static RingBuffer<TagReport> createReportQueue(Properties p) {
+        int queueSize =
+            Integer.parseInt(p.getProperty(REPORT_QUEUE_SIZE_PROPERTY,
+                                           REPORT_QUEUE_SIZE_DEFAULT));
+        String wait = p.getProperty(REPORT_WAIT_PROPERTY, REPORT_WAIT_DEFAULT);
+        String overflow = p.getProperty(REPORT_OVERFLOW_PROPERTY,
+                                        REPORT_OVERFLOW_DEFAULT);
+        long blockTime =
+            Long.parseLong(p.getProperty(REPORT_BLOCK_TIME_PROPERTY,
+                                         REPORT_BLOCK_TIME_DEFAULT));
+        RingBuffer.WaitStrategy waitStrategy;
+        RingBuffer.OverflowPolicy overflowPolicy;
+        try {
+            waitStrategy = RingBuffer.WaitStrategy.valueOf(toEnumName(wait));
+            overflowPolicy =
+                RingBuffer.OverflowPolicy.valueOf(toEnumName(overflow));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Invalid report queue " +
+                                               "settings: " + wait + ", " +
+                                               overflow, iae);
+        }
+        logger.config("Queueing up to " + queueSize + " reports, waiting: " +
+                      wait + ", overflow: " + overflow);
+        return new RingBuffer<TagReport>(queueSize, waitStrategy,
+                                         overflowPolicy, blockTime,
+                                         new ReleasingDropHandler());
+    }
+
+    /** Converts a property value like "drop-oldest" to an enum name. */
+    private static String toEnumName(String value) {
+        return value.trim().toUpperCase().replace('-', '_');
+    }
+
+    /**
+     * Returns a report, taken from the pool if possible, that is prepared
+     * for the given transaction and registered as its listener.
+     */
+    private TagReportImpl acquireReport(Transaction txn, double txnWeight) {
+        TagReportImpl report = reportPool.poll();
+        if (report == null) {
+            report = new TagReportImpl();
         }
-        report.tagMap.put(tag, tagValue);
-        return true;
+        report.prepare(txn.getId(), txn.getCreationTime(), txnWeight);
+        txn.registerListener(report);
+        return report;
     }
 
     /* Private utility classes */
 
-    /** Private Runnable used to consume and report available reports. */
-    private class ReportConsumerRunnable implements Runnable {
+    /**
+     * Private class that passes reports to a single listener, through its
+     * own queue and consumer thread.
+     */
+    private class ListenerChannel implements Runnable {
+        final String name;
+        private final TagReportListener listener;
+        final RingBuffer<TagReport> queue;
+        final Thread thread;
+        // the current batch, and a read-only view of it for the listener
+        private final List<TagReport> batch;
+        private final List<TagReport> batchView;
+        // statistics
+        final AtomicLong deliveredCount = new AtomicLong(0);
+        volatile long lagMillis = 0;
+        // the time by which queued reports must be delivered once the
+        // channel is stopped, and the delivered count at that point
+        private volatile long deadline = Long.MAX_VALUE;
+        private volatile long deliveredAtStop = 0;
+        /** Creates an instance of ListenerChannel. */
+        ListenerChannel(String name, TagReportListener listener,
+                        RingBuffer<TagReport> queue)
+        {
+            this.name = name;
+            this.listener = listener;
+            this.queue = queue;
+            this.thread = new Thread(this, "TagService-" + name);
+            // a listener that is stuck at shutdown must not keep the
+            // node's process from exiting
+            thread.setDaemon(true);
+            this.batch = new ArrayList<TagReport>(batchSize);
+            this.batchView = Collections.unmodifiableList(batch);
+        }
+        /** Queues a report for this channel's listener. */
+        void offer(TagReportImpl report) {
+            // each queue holds its own reference, which is released when
+            // the listener is done or the report is dropped
+            report.retain();
+            if (! queue.add(report)) {
+                logger.log(Level.FINE, "Dropped a report for listener " +
+                           name + " because its queue was full");
+            }
+        }
+        /** Stops the channel, delivering queued reports until the deadline. */
+        void stop(long stopDeadline) {
+            deliveredAtStop = deliveredCount.get();
+            deadline = stopDeadline;
+            queue.close();
+        }
         /** {@inheritDoc} */
         public void run() {
-            // process any reports as they become available until the thread
-            // is interrupted specifically because the Service shut down
+            // process any reports as they become available until the queue
+            // is closed and empty, or the shutdown deadline has passed
             while (true) {
                 try {
-                    if (consumerThread.isInterrupted() && isShutdown.get()) {
-                        logger.info("Consumer thread is shutting down");
+                    TagReport first = queue.take();
+                    if (first == null) {
                         break;
                     }
-                    TagReport tagReport = reportQueue.take();
-                    for (TagReportListener listener : reportListeners) {
-                        try {
-                            listener.report(tagReport);
-                        } catch (Exception e) {
-                            logger.log(Level.WARNING, "listener failed to " +
-                                       "accept report", e);
+                    batch.add(first);
+                    if (System.currentTimeMillis() > deadline) {
+                        break;
+                    }
+                    queue.drainTo(batch, batchSize - 1);
+                    try {
+                        deliver();
+                        deliveredCount.addAndGet(batch.size());
+                        lagMillis = System.currentTimeMillis() -
+                            ((TagReportImpl) batch.get(0)).completionTime;
+                    } finally {
+                        // release the references taken when queued
+                        for (TagReport tagReport : batch) {
+                            tagReport.release();
                         }
+                        batch.clear();
                     }
                 } catch (InterruptedException ie) {
-                    if (isShutdown.get()) {
-                        logger.info("Consumer thread is shutting down");
-                        break;
-                    }
+                    logger.log(Level.FINE, "Consumer thread for " + name +
+                               " was interrupted", ie);
                 }
             }
 
-            // TODO: at this point the queue could be drained to make
-            // sure that all remaining reports are reported
+            // anything left has missed the deadline, so drop it
+            long dropped = batch.size();
+            for (TagReport tagReport : batch) {
+                tagReport.release();
+            }
+            batch.clear();
+            for (TagReport r = queue.poll(); r != null; r = queue.poll()) {
+                r.release();
+                dropped++;
+            }
+            try {
+                listener.shutdown();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "listener failed to shutdown", e);
+            }
+            logger.info("Listener " + name + " shut down after flushing " +
+                        (deliveredCount.get() - deliveredAtStop) +
+                        " reports, dropping " + dropped + " at the deadline " +
+                        "and " + queue.getDroppedCount() + " on overflow");
+        }
+        /** Passes the current batch to the listener. */
+        private void deliver() {
+            if (listener instanceof BatchTagReportListener) {
+                try {
+                    ((BatchTagReportListener) listener).report(batchView);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "listener failed to accept " +
+                               "reports", e);
+                }
+                return;
+            }
+            for (TagReport tagReport : batch) {
+                try {
+                    listener.report(tagReport);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "listener failed to accept " +
+                               "report", e);
+                }
+            }
+        }
+    }
+
+    /** Private implementation of the management interface. */
+    private class ManagementImpl implements TagServiceMXBean {
+        /** {@inheritDoc} */
+        public Map<String,Long> getQueuedReports() {
+            Map<String,Long> values = new HashMap<String,Long>();
+            for (ListenerChannel channel : channels) {
+                values.put(channel.name, (long) channel.queue.size());
+            }
+            return values;
+        }
+        /** {@inheritDoc} */
+        public Map<String,Long> getDeliveredReports() {
+            Map<String,Long> values = new HashMap<String,Long>();
+            for (ListenerChannel channel : channels) {
+                values.put(channel.name, channel.deliveredCount.get());
+            }
+            return values;
+        }
+        /** {@inheritDoc} */
+        public Map<String,Long> getDroppedReports() {
+            Map<String,Long> values = new HashMap<String,Long>();
+            for (ListenerChannel channel : channels) {
+                values.put(channel.name, channel.queue.getDroppedCount());
+            }
+            return values;
+        }
+        /** {@inheritDoc} */
+        public Map<String,Long> getLagMillis() {
+            Map<String,Long> values = new HashMap<String,Long>();
+            for (ListenerChannel channel : channels) {
+                values.put(channel.name, channel.lagMillis);
+            }
+            return values;
+        }
+        /** {@inheritDoc} */
+        public int getSampleRate() {
+            return sampleRate;
+        }
+        /** {@inheritDoc} */
+        public void setSampleRate(int rate) {
+            if (rate < 1) {
+                throw new IllegalArgumentException("Sample rate must be " +
+                                                   "positive");
+            }
+            sampleRate = rate;
+        }
+        /** {@inheritDoc} */
+        public int getTagSampleLimit() {
+            return (tagSampler == null) ? 0 : tagSampler.getLimit();
+        }
+        /** {@inheritDoc} */
+        public void setTagSampleLimit(int limit) {
+            if (tagSampler == null) {
+                throw new IllegalStateException("Tags are not sampled");
+            }
+            tagSampler.setLimit(limit);
+        }
+    }
+
+    /** Private handler that releases the reports dropped by a queue. */
+    private static class ReleasingDropHandler
+        implements RingBuffer.DropHandler<TagReport>
+    {
+        /** {@inheritDoc} */
+        public void dropped(TagReport report) {
+            report.release();
         }
     }
 
     /**
-     * Private class that tracks the reported tag state associated with a
-     * transaction and is also the TransactionListener used to report
-     * the collected tag state when the transaction completes.
+     * Private holder for the report of a thread's current transaction. The
+     * slot is also the listener that clears it when a transaction that
+     * has tags that were not recorded completes.
      */
-    private class TagTransactionListener implements TransactionListener {
-        private final TagReport report;
-        /** Creates an instance of TagTransactionListener. */
-        TagTransactionListener(TagReport report) {
-            this.report = report;
-        }
+    private static class ReportSlot implements TransactionListener {
+        // the transaction that was last tagged on this thread, and whether
+        // it is skipped by sampling, or else its weight
+        Transaction txn = null;
+        boolean skipped = false;
+        double txnWeight = 1.0;
+        // the report, or null if the current transaction has no reported
+        // tags
+        TagReportImpl report = null;
+        // the tags of the current transaction that were not recorded, and
+        // whether this slot is listening for the transaction to complete
+        final TagTable sampledOut = new TagTable();
+        boolean listening = false;
+        // the number of tagged transactions, used for sampling
+        long txnCount = 0;
+        final Random random = new Random();
         /** {@inheritDoc} */
         public void beforeCompletion() { }
         /** {@inheritDoc} */
         public void afterCompletion(boolean committed) {
-            if (committed || (! onlyReportOnCommit)) {
-                if (! reportQueue.offer(report)) {
-                    // this should never happen, since it would require the
-                    // system to be over-loaded to the point that it should
-                    // be failing elsewhere...though this queue could be
-                    // intentionally limited and this could be used as an
-                    // indicator of node health
-                    logger.warning("Failed to enqueue a report");
-                }
-            }
-            localTagReport.remove();
+            // the report, if any, is released by its own listener
+            txn = null;
+            report = null;
+            sampledOut.clear();
+            listening = false;
         }
         /** {@inheritDoc} */
         public String getTypeName() {
-            return TagTransactionListener.class.getName();
+            return ReportSlot.class.getName();
         }
     }
 
-    /** Private implementation of TagReport. */
-    private static class TagReportImpl implements TagReport {
-        private final byte [] id;
-        private final long startTime;
-        final Map<Long,Object> tagMap = new HashMap<Long,Object>();
-        /** Creates an instance of TagReportImpl. */
-        TagReportImpl(byte [] id, long startTime) {
-            this.id = id;
-            this.startTime = startTime;
+    /**
+     * Private implementation of TagReport that tracks the reported tag state
+     * associated with a transaction and is also the TransactionListener used
+     * to report the collected tag state when the transaction completes.
+     * Instances are re-used, with a reference count that reaches zero when
+     * the report may be returned to the pool.
+     */
+    private class TagReportImpl implements TagReport, TransactionListener {
+        private byte [] id;
+        private long startTime;
+        private double txnWeight;
+        // the time the transaction completed, used to measure lag
+        volatile long completionTime;
+        final TagTable tagTable = new TagTable();
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        /** Prepares this report for a new transaction. */
+        void prepare(byte [] txnId, long txnStartTime, double weight) {
+            this.id = txnId;
+            this.startTime = txnStartTime;
+            this.txnWeight = weight;
+            refCount.set(1);
+        }
+        /** {@inheritDoc} */
+        public void beforeCompletion() { }
+        /** {@inheritDoc} */
+        public void afterCompletion(boolean committed) {
+            // the transaction completes on the thread that ran it
+            ReportSlot slot = localSlot.get();
+            if (slot.report == this) {
+                slot.report = null;
+                slot.txn = null;
+            }
+            if ((committed || (! onlyReportOnCommit)) && (! isShutdown.get())) {
+                completionTime = System.currentTimeMillis();
+                for (int i = 0; i < channels.length; i++) {
+                    channels[i].offer(this);
+                }
+            }
+            // release the reference held for the transaction
+            release();
+        }
+        /** {@inheritDoc} */
+        public String getTypeName() {
+            return TagReportImpl.class.getName();
         }
         /** {@inheritDoc} */
         public byte [] getTransactionId() {
@@ -283,11 +881,103 @@ public class TagService implements TagManager, Service {
         }
         /** {@inheritDoc} */
         public Collection<Long> getTags() {
-            return Collections.unmodifiableSet(tagMap.keySet());
+            return new TagCollection(tagTable);
+        }
+        /** {@inheritDoc} */
+        public long [] getTagArray() {
+            return tagTable.toTagArray();
+        }
+        /** {@inheritDoc} */
+        public void forEachTag(TagConsumer consumer) {
+            tagTable.forEach(consumer);
         }
         /** {@inheritDoc} */
         public Object getTagValue(long tag) {
-            return tagMap.get(tag);
+            return tagTable.get(tag);
+        }
+        /** {@inheritDoc} */
+        public TagValueType getTagValueType(long tag) {
+            return tagTable.getType(tag);
+        }
+        /** {@inheritDoc} */
+        public long getLongTagValue(long tag) {
+            return tagTable.getLong(tag);
+        }
+        /** {@inheritDoc} */
+        public double getDoubleTagValue(long tag) {
+            return tagTable.getDouble(tag);
+        }
+        /** {@inheritDoc} */
+        public String getStringTagValue(long tag) {
+            return tagTable.getString(tag);
+        }
+        /** {@inheritDoc} */
+        public double getTagWeight(long tag) {
+            return txnWeight * tagTable.getWeight(tag);
+        }
+        /** {@inheritDoc} */
+        public void retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    throw new IllegalStateException("Report was recycled");
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return;
+                }
+            }
+        }
+        /** {@inheritDoc} */
+        public void release() {
+            int count = refCount.decrementAndGet();
+            if (count > 0) {
+                return;
+            }
+            if (count < 0) {
+                refCount.incrementAndGet();
+                throw new IllegalStateException("Report was recycled");
+            }
+            // no one refers to the report, so it can be recycled, or left
+            // for the garbage collector if the pool is full
+            id = null;
+            tagTable.clear();
+            reportPool.offer(this);
+        }
+    }
+
+    /** Private read-only view of the tags in a table, boxed on demand. */
+    private static class TagCollection extends AbstractCollection<Long> {
+        private final TagTable tagTable;
+        /** Creates an instance of TagCollection. */
+        TagCollection(TagTable tagTable) {
+            this.tagTable = tagTable;
+        }
+        /** {@inheritDoc} */
+        public int size() {
+            return tagTable.size();
+        }
+        /** {@inheritDoc} */
+        public boolean contains(Object o) {
+            return (o instanceof Long) && tagTable.contains((Long) o);
+        }
+        /** {@inheritDoc} */
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                private int next = 0;
+                public boolean hasNext() {
+                    return next < tagTable.size();
+                }
+                public Long next() {
+                    if (next >= tagTable.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    return tagTable.tagAt(next++);
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException("Tags are " +
+                                                            "read-only");
+                }
+            };
         }
     }
 
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.Map;
+
+
+/**
+ * The management interface for {@code TagService}. An instance is
+ * registered with the platform {@code MBeanServer} for each node that has
+ * report listeners, under {@link #MXBEAN_NAME} with a {@code node} key
+ * naming the node. Each listener has its own queue of reports, so all
+ * values are reported for each listener, keyed by the listener's name.
+ */
+public interface TagServiceMXBean {
+
+    /** The base name under which this bean is registered. */
+    String MXBEAN_NAME = "com.sun.sgs.services:type=TagService";
+
+    /**
+     * Returns the number of reports waiting to be delivered to each
+     * listener.
+     *
+     * @return the queued report counts, keyed by listener
+     */
+    Map<String,Long> getQueuedReports();
+
+    /**
+     * Returns the total number of reports delivered to each listener.
+     *
+     * @return the delivered report counts, keyed by listener
+     */
+    Map<String,Long> getDeliveredReports();
+
+    /**
+     * Returns the total number of reports dropped for each listener
+     * because its queue was full.
+     *
+     * @return the dropped report counts, keyed by listener
+     */
+    Map<String,Long> getDroppedReports();
+
+    /**
+     * Returns, for each listener, the time in milliseconds between the
+     * completion of a transaction and the delivery of its report, as
+     * measured for the oldest report in the most recent batch.
+     *
+     * @return the delivery lag, keyed by listener
+     */
+    Map<String,Long> getLagMillis();
+
+    /**
+     * Returns the transaction sampling rate, where only one in this many
+     * tagged transactions is reported.
+     *
+     * @return the sampling rate
+     */
+    int getSampleRate();
+
+    /**
+     * Sets the transaction sampling rate, where only one in this many
+     * tagged transactions is reported.
+     *
+     * @param sampleRate the sampling rate, where 1 reports every
+     *                   transaction
+     *
+     * @throws IllegalArgumentException if {@code sampleRate} is not
+     *                                  positive
+     */
+    void setSampleRate(int sampleRate);
+
+    /**
+     * Returns the number of applications of each tag per second that are
+     * reported without sampling, or {@code 0} if tags are not sampled.
+     *
+     * @return the per-tag limit
+     */
+    int getTagSampleLimit();
+
+    /**
+     * Sets the number of applications of each tag per second that are
+     * reported without sampling.
+     *
+     * @param limit the per-tag limit
+     *
+     * @throws IllegalArgumentException if {@code limit} is not positive
+     * @throws IllegalStateException if tags are not being sampled
+     */
+    void setTagSampleLimit(int limit);
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+import java.util.Arrays;
+
+
+/**
+ * A map from primitive {@code long} tags to values, used to collect the
+ * tags applied to a single transaction without boxing the tags or
+ * allocating an entry for each one.
+ * <p>
+ * Tags and values are kept in insertion order in parallel arrays. Each
+ * value has a type, and {@code long} and {@code double} values are kept
+ * as the bits of a primitive {@code long}, so that they are not boxed
+ * unless they are read as objects.
+ * Most transactions apply only a few tags, so up to {@code INLINE_SIZE}
+ * tags are found by scanning the tag array. Beyond that, an
+ * open-addressing index with linear probing is built over the arrays.
+ * Tags may be added but not removed, except by clearing the whole table.
+ * This class is not thread-safe.
+ */
+final class TagTable {
+
+    // the number of tags that are found by a linear scan
+    private static final int INLINE_SIZE = 4;
+
+    // the tags, value types, primitive values, object values and sampling
+    // weights, in insertion order
+    private long [] tags = new long[INLINE_SIZE];
+    private TagValueType [] types = new TagValueType[INLINE_SIZE];
+    private long [] bits = new long[INLINE_SIZE];
+    private Object [] values = new Object[INLINE_SIZE];
+    private double [] weights = new double[INLINE_SIZE];
+    private int size = 0;
+
+    // the positions of tags in the arrays, plus one so that zero marks an
+    // empty slot, or null while the table is small
+    private int [] index = null;
+
+    /** Creates an empty instance of {@code TagTable}. */
+    TagTable() { }
+
+    /**
+     * Adds a tag with the given value, unless the tag is already present.
+     *
+     * @param tag the tag
+     * @param value the value, which may be {@code null}
+     *
+     * @return {@code true} if the tag was added, or {@code false} if the
+     *         tag was already present
+     */
+    boolean put(long tag, Object value) {
+        return put(tag, value, 1.0);
+    }
+
+    /**
+     * Adds a tag with the given value and sampling weight, unless the tag
+     * is already present.
+     *
+     * @param tag the tag
+     * @param value the value, which may be {@code null}
+     * @param weight the number of applications of the tag that this one
+     *               represents
+     *
+     * @return {@code true} if the tag was added, or {@code false} if the
+     *         tag was already present
+     */
+    boolean put(long tag, Object value, double weight) {
+        TagValueType type;
+        if (value == null) {
+            type = TagValueType.NONE;
+        } else if (value instanceof String) {
+            type = TagValueType.STRING;
+        } else {
+            type = TagValueType.OBJECT;
+        }
+        return add(tag, type, 0L, value, weight);
+    }
+
+    /**
+     * Adds a tag with the given {@code long} value and sampling weight,
+     * unless the tag is already present.
+     *
+     * @param tag the tag
+     * @param value the value
+     * @param weight the number of applications of the tag that this one
+     *               represents
+     *
+     * @return {@code true} if the tag was added, or {@code false} if the
+     *         tag was already present
+     */
+    boolean putLong(long tag, long value, double weight) {
+        return add(tag, TagValueType.LONG, value, null, weight);
+    }
+
+    /**
+     * Adds a tag with the given {@code double} value and sampling weight,
+     * unless the tag is already present.
+     *
+     * @param tag the tag
+     * @param value the value
+     * @param weight the number of applications of the tag that this one
+     *               represents
+     *
+     * @return {@code true} if the tag was added, or {@code false} if the
+     *         tag was already present
+     */
+    boolean putDouble(long tag, double value, double weight) {
+        return add(tag, TagValueType.DOUBLE, Double.doubleToRawLongBits(value),
+                   null, weight);
+    }
+
+    /**
+     * Returns whether the given tag is present.
+     *
+     * @param tag the tag
+     *
+     * @return {@code true} if the tag is present
+     */
+    boolean contains(long tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    /**
+     * Returns the value of the given tag, boxing {@code long} and
+     * {@code double} values.
+     *
+     * @param tag the tag
+     *
+     * @return the value, or {@code null} if the tag has no value or is
+     *         not present
+     */
+    Object get(long tag) {
+        int i = indexOf(tag);
+        return (i >= 0) ? valueAt(i) : null;
+    }
+
+    /**
+     * Returns the type of the value of the given tag.
+     *
+     * @param tag the tag
+     *
+     * @return the type, which is {@code NONE} if the tag has no value or
+     *         is not present
+     */
+    TagValueType getType(long tag) {
+        int i = indexOf(tag);
+        return (i >= 0) ? types[i] : TagValueType.NONE;
+    }
+
+    /**
+     * Returns the {@code long} value of the given tag.
+     *
+     * @param tag the tag
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the tag does not have a
+     *                                  {@code long} value
+     */
+    long getLong(long tag) {
+        return bits[indexOf(tag, TagValueType.LONG)];
+    }
+
+    /**
+     * Returns the {@code double} value of the given tag.
+     *
+     * @param tag the tag
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the tag does not have a
+     *                                  {@code double} value
+     */
+    double getDouble(long tag) {
+        return Double.longBitsToDouble(bits[indexOf(tag,
+                                                    TagValueType.DOUBLE)]);
+    }
+
+    /**
+     * Returns the {@code String} value of the given tag.
+     *
+     * @param tag the tag
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the tag does not have a
+     *                                  {@code String} value
+     */
+    String getString(long tag) {
+        return (String) values[indexOf(tag, TagValueType.STRING)];
+    }
+
+    /**
+     * Returns the sampling weight of the given tag.
+     *
+     * @param tag the tag
+     *
+     * @return the weight, or {@code 0} if the tag is not present
+     */
+    double getWeight(long tag) {
+        int i = indexOf(tag);
+        return (i >= 0) ? weights[i] : 0.0;
+    }
+
+    /** Returns the number of tags. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the tag at the given position in insertion order. */
+    long tagAt(int i) {
+        return tags[i];
+    }
+
+    /**
+     * Returns the value at the given position in insertion order, boxing
+     * {@code long} and {@code double} values.
+     */
+    Object valueAt(int i) {
+        switch (types[i]) {
+        case LONG:
+            return Long.valueOf(bits[i]);
+        case DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(bits[i]));
+        default:
+            return values[i];
+        }
+    }
+
+    /** Returns a new array of the tags, in insertion order. */
+    long [] toTagArray() {
+        return Arrays.copyOf(tags, size);
+    }
+
+    /**
+     * Calls the given consumer with each tag, in insertion order. If the
+     * consumer is a {@code TypedTagConsumer} then {@code long} and
+     * {@code double} values are passed without boxing.
+     */
+    void forEach(TagConsumer consumer) {
+        TypedTagConsumer typed = (consumer instanceof TypedTagConsumer) ?
+            (TypedTagConsumer) consumer : null;
+        for (int i = 0; i < size; i++) {
+            if ((typed != null) && (types[i] == TagValueType.LONG)) {
+                typed.consumeLong(tags[i], bits[i]);
+            } else if ((typed != null) &&
+                       (types[i] == TagValueType.DOUBLE))
+            {
+                typed.consumeDouble(tags[i],
+                                    Double.longBitsToDouble(bits[i]));
+            } else {
+                consumer.consume(tags[i], valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Removes all tags, keeping the arrays that have been allocated so
+     * that the table may be re-used.
+     */
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    /* Private methods. */
+
+    /** Adds a tag of any type, unless the tag is already present. */
+    private boolean add(long tag, TagValueType type, long valueBits,
+                        Object value, double weight)
+    {
+        if (indexOf(tag) >= 0) {
+            return false;
+        }
+        if (size == tags.length) {
+            tags = Arrays.copyOf(tags, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+            bits = Arrays.copyOf(bits, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            weights = Arrays.copyOf(weights, size * 2);
+        }
+        tags[size] = tag;
+        types[size] = type;
+        bits[size] = valueBits;
+        values[size] = value;
+        weights[size] = weight;
+        size++;
+        if (size > INLINE_SIZE) {
+            // the index is stale if the table was cleared after it was built
+            if ((index == null) || (size == INLINE_SIZE + 1) ||
+                (size * 2 > index.length))
+            {
+                rebuildIndex();
+            } else {
+                insertIndex(tag, size - 1);
+            }
+        }
+        return true;
+    }
+
+    /** Returns the position of the given tag, or -1 if not present. */
+    private int indexOf(long tag) {
+        if ((index == null) || (size <= INLINE_SIZE)) {
+            for (int i = 0; i < size; i++) {
+                if (tags[i] == tag) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(tag) & mask; index[slot] != 0;
+             slot = (slot + 1) & mask)
+        {
+            int i = index[slot] - 1;
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the given tag, checking that its value has
+     * the given type.
+     */
+    private int indexOf(long tag, TagValueType type) {
+        int i = indexOf(tag);
+        if ((i < 0) || (types[i] != type)) {
+            throw new IllegalArgumentException("Tag " + tag + " does not " +
+                                               "have a " + type + " value");
+        }
+        return i;
+    }
+
+    /** Adds the tag at the given position to the index. */
+    private void insertIndex(long tag, int i) {
+        int mask = index.length - 1;
+        int slot = hash(tag) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = i + 1;
+    }
+
+    /** Re-creates the index with room for the tags at half load. */
+    private void rebuildIndex() {
+        int capacity = Integer.highestOneBit(size * 4);
+        if ((index == null) || (index.length < capacity)) {
+            index = new int[capacity];
+        } else {
+            Arrays.fill(index, 0);
+        }
+        for (int i = 0; i < size; i++) {
+            insertIndex(tags[i], i);
+        }
+    }
+
+    /** Mixes the bits of a tag, since tags are often sequential. */
+    private static int hash(long tag) {
+        tag ^= tag >>> 33;
+        tag *= 0xff51afd7ed558ccdL;
+        tag ^= tag >>> 33;
+        return (int) tag;
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+
+/**
+ * The type of the value that was applied with a tag, as reported by
+ * {@link TagReport#getTagValueType}. Values applied through the typed
+ * {@code tagTask} methods of the {@code TagManager} are stored without
+ * boxing, and may be read back with the matching typed getter of the
+ * {@code TagReport}.
+ */
+public enum TagValueType {
+
+    /** The tag was applied without a value, or was not applied. */
+    NONE,
+
+    /** The value is a primitive {@code long}. */
+    LONG,
+
+    /** The value is a primitive {@code double}. */
+    DOUBLE,
+
+    /** The value is a {@code String}. */
+    STRING,
+
+    /** The value is some other object. */
+    OBJECT
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the LICENSE file that accompanied
+ * this code.
+ */
+
+package com.sun.sgs.services.impl.service;
+
+
+/**
+ * A {@code TagConsumer} that is passed {@code long} and {@code double}
+ * values without boxing them. When a {@code TagReport} visits its tags
+ * with a consumer that implements this interface, tags with
+ * {@link TagValueType#LONG} or {@link TagValueType#DOUBLE} values are
+ * passed to {@code consumeLong} or {@code consumeDouble}, and all other
+ * tags are passed to {@code consume}.
+ *
+ * @see TagReport#forEachTag
+ */
+public interface TypedTagConsumer extends TagConsumer {
+
+    /**
+     * Called for a tag that was applied with a {@code long} value.
+     *
+     * @param tag the identifier of the tag
+     * @param tagValue the value associated with the tag
+     */
+    void consumeLong(long tag, long tagValue);
+
+    /**
+     * Called for a tag that was applied with a {@code double} value.
+     *
+     * @param tag the identifier of the tag
+     * @param tagValue the value associated with the tag
+     */
+    void consumeDouble(long tag, double tagValue);
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.Task;
+
+import com.sun.sgs.services.app.AsyncCallable;
+import com.sun.sgs.services.app.AsyncRunnable;
+import com.sun.sgs.services.app.AsyncTaskCallback;
+import com.sun.sgs.services.app.AsyncTaskManager;
+import com.sun.sgs.services.app.TransactionRunner;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An {@code AsyncRunnable} that measures the throughput and completion
+ * latency of the {@code AsyncTaskManager}. It is intended to be run as the
+ * startup task of the {@code NodeStartupTaskService}, once for each
+ * execution mode of the {@code AsyncTaskService} being compared.
+ * <p>
+ * The benchmark starts a fixed number of {@code AsyncCallable}s, each of
+ * which blocks for a fixed time to simulate network or disk access, and
+ * records the time from starting each task until its callback is notified.
+ * When all tasks have completed, or the benchmark times out, the results
+ * are logged at {@code INFO}. Because the benchmark is constructed by the
+ * startup service with no arguments, it is configured through system
+ * properties: {@code TASKS_PROPERTY}, {@code TASKS_PER_TXN_PROPERTY},
+ * {@code BLOCK_TIME_PROPERTY}, {@code FAN_OUT_PROPERTY} and
+ * {@code TIMEOUT_PROPERTY}.
+ * <p>
+ * If {@code FAN_OUT_PROPERTY} is set then each task is instead started
+ * with {@code allOf} over that many blocking callables. Running with more
+ * tasks per transaction than the executor has core threads checks that
+ * fan-outs whose parents occupy every thread still complete, rather than
+ * timing out.
+ */
+public class AsyncTaskBenchmark implements AsyncRunnable {
+
+    private static final String NAME = AsyncTaskBenchmark.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    /** The system property defining the total number of tasks to run. */
+    public static final String TASKS_PROPERTY = NAME + ".tasks";
+
+    /** The default total number of tasks. */
+    public static final int DEFAULT_TASKS = 10000;
+
+    /** The system property defining how many tasks start per transaction. */
+    public static final String TASKS_PER_TXN_PROPERTY = NAME + ".tasks.per.txn";
+
+    /** The default number of tasks started per transaction. */
+    public static final int DEFAULT_TASKS_PER_TXN = 10;
+
+    /** The system property defining each task's block time in ms. */
+    public static final String BLOCK_TIME_PROPERTY = NAME + ".block.time";
+
+    /** The default task block time. */
+    public static final int DEFAULT_BLOCK_TIME = 50;
+
+    /** The system property defining how many callables each task runs. */
+    public static final String FAN_OUT_PROPERTY = NAME + ".fan.out";
+
+    /** The default fan-out, where each task runs a single callable. */
+    public static final int DEFAULT_FAN_OUT = 0;
+
+    /** The system property defining the benchmark timeout in seconds. */
+    public static final String TIMEOUT_PROPERTY = NAME + ".timeout";
+
+    /** The default benchmark timeout. */
+    public static final int DEFAULT_TIMEOUT = 300;
+
+    // the state of any running benchmarks, which callbacks find by id
+    private static final Map<Long,Run> runs = new ConcurrentHashMap<Long,Run>();
+    private static final AtomicLong runIds = new AtomicLong(0);
+
+    /** {@inheritDoc} */
+    public void run(TransactionRunner transactionRunner) {
+        final int tasks = Integer.getInteger(TASKS_PROPERTY, DEFAULT_TASKS);
+        final int tasksPerTxn = Integer.getInteger(TASKS_PER_TXN_PROPERTY,
+                                                   DEFAULT_TASKS_PER_TXN);
+        final int blockTime = Integer.getInteger(BLOCK_TIME_PROPERTY,
+                                                 DEFAULT_BLOCK_TIME);
+        final int fanOut = Integer.getInteger(FAN_OUT_PROPERTY,
+                                              DEFAULT_FAN_OUT);
+        int timeout = Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+
+        final long runId = runIds.getAndIncrement();
+        Run run = new Run(tasks);
+        runs.put(runId, run);
+        logger.info("Starting benchmark with " + tasks + " tasks blocking " +
+                    "for " + blockTime + "ms each" +
+                    (fanOut > 0 ? ", each fanning out to " + fanOut : ""));
+
+        long begin = System.nanoTime();
+        int rejected = 0;
+        for (int i = 0; i < tasks; i += tasksPerTxn) {
+            final int first = i;
+            final int last = Math.min(i + tasksPerTxn, tasks);
+            try {
+                transactionRunner.runTransaction(new Task() {
+                        public void run() {
+                            AsyncTaskManager manager =
+                                AppContext.getManager(AsyncTaskManager.class);
+                            for (int j = first; j < last; j++) {
+                                long start = System.nanoTime();
+                                if (fanOut > 0) {
+                                    manager.<Long>allOf
+                                        (fanOutCallables(fanOut, blockTime)).
+                                        thenNotify(new RecordingCallback
+                                                   <List<Long>>
+                                                   (runId, j, start));
+                                } else {
+                                    manager.startTask(new BlockingCallable
+                                                      (blockTime),
+                                                      new RecordingCallback
+                                                      <Long>(runId, j, start));
+                                }
+                            }
+                        }
+                    });
+            } catch (Exception e) {
+                // typically a TaskRejectedException, so none of the tasks
+                // in this transaction were started
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Failed to start tasks", e);
+                }
+                for (int j = first; j < last; j++) {
+                    run.complete(j, -1L);
+                }
+                rejected += last - first;
+            }
+        }
+
+        try {
+            if (! run.latch.await(timeout, TimeUnit.SECONDS)) {
+                logger.warning("Benchmark timed out");
+            }
+        } catch (InterruptedException ie) {
+            logger.warning("Benchmark interrupted");
+        }
+        long elapsed = System.nanoTime() - begin;
+        runs.remove(runId);
+
+        run.report(elapsed, rejected);
+    }
+
+    /** Returns the callables that a single fanned out task runs. */
+    private static List<BlockingCallable> fanOutCallables(int fanOut,
+                                                          long blockTime)
+    {
+        List<BlockingCallable> callables =
+            new ArrayList<BlockingCallable>(fanOut);
+        for (int i = 0; i < fanOut; i++) {
+            callables.add(new BlockingCallable(blockTime));
+        }
+        return callables;
+    }
+
+    /** The collected state of a single benchmark run. */
+    private static class Run {
+        final CountDownLatch latch;
+        private final AtomicIntegerArray completed;
+        private final long [] latencies;
+        Run(int tasks) {
+            latch = new CountDownLatch(tasks);
+            completed = new AtomicIntegerArray(tasks);
+            latencies = new long[tasks];
+        }
+        /** Records a task's latency, or -1 if it did not run. */
+        void complete(int index, long latency) {
+            // callbacks may be re-tried, so only count the first one
+            if (completed.compareAndSet(index, 0, 1)) {
+                latencies[index] = latency;
+                latch.countDown();
+            }
+        }
+        /** Logs the results of the run. */
+        void report(long elapsed, int rejected) {
+            long [] sorted = new long[latencies.length];
+            int count = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                if ((completed.get(i) == 1) && (latencies[i] >= 0)) {
+                    sorted[count++] = latencies[i];
+                }
+            }
+            Arrays.sort(sorted, 0, count);
+            double seconds = elapsed / 1000000000.0;
+            StringBuilder sb = new StringBuilder("Benchmark results:");
+            sb.append("\n  completed tasks: ").append(count);
+            sb.append("\n  rejected tasks: ").append(rejected);
+            sb.append("\n  elapsed time (ms): ").append(elapsed / 1000000);
+            sb.append("\n  throughput (tasks/s): ").
+                append(seconds > 0 ? (long) (count / seconds) : 0);
+            if (count > 0) {
+                sb.append("\n  p50 latency (ms): ").
+                    append(sorted[percentile(count, 50)] / 1000000.0);
+                sb.append("\n  p99 latency (ms): ").
+                    append(sorted[percentile(count, 99)] / 1000000.0);
+                sb.append("\n  max latency (ms): ").
+                    append(sorted[count - 1] / 1000000.0);
+            }
+            logger.info(sb.toString());
+        }
+        /** Returns the index of the given percentile in a sorted array. */
+        private static int percentile(int count, int percent) {
+            return Math.min(count - 1, (int) ((count * (long) percent) / 100));
+        }
+    }
+
+    /** A callable that blocks for a fixed time. */
+    private static class BlockingCallable implements AsyncCallable<Long> {
+        private final long blockTime;
+        BlockingCallable(long blockTime) {
+            this.blockTime = blockTime;
+        }
+        /** {@inheritDoc} */
+        public Long call(TransactionRunner transactionRunner)
+            throws Exception
+        {
+            Thread.sleep(blockTime);
+            return System.nanoTime();
+        }
+    }
+
+    /** A callback that records the time from starting its task. */
+    private static class RecordingCallback<T>
+        implements AsyncTaskCallback<T>, Serializable
+    {
+        private static final long serialVersionUID = 1L;
+        private final long runId;
+        private final int index;
+        private final long startTime;
+        RecordingCallback(long runId, int index, long startTime) {
+            this.runId = runId;
+            this.index = index;
+            this.startTime = startTime;
+        }
+        /** {@inheritDoc} */
+        public void notifyResult(T result) {
+            Run run = runs.get(runId);
+            if (run != null) {
+                run.complete(index, System.nanoTime() - startTime);
+            }
+        }
+        /** {@inheritDoc} */
+        public void notifyFailed(Throwable t) {
+            Run run = runs.get(runId);
+            if (run != null) {
+                run.complete(index, -1L);
+            }
+        }
+    }
+
+}
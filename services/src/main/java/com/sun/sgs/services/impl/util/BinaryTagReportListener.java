@@ -0,0 +1,457 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import com.sun.sgs.services.impl.service.BatchTagReportListener;
+import com.sun.sgs.services.impl.service.TagReport;
+import com.sun.sgs.services.impl.service.TypedTagConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.List;
+import java.util.Properties;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An implementation of {@code TagReportListener} that appends every report
+ * to a compact binary log, so that all reports on a node can be captured
+ * without a database and shipped or analyzed offline. The log is written
+ * through a memory-mapped file: each report is encoded directly into the
+ * mapping, and the operating system writes the pages out, so reporting
+ * costs little more than the encoding itself. Logs are read back with a
+ * {@link BinaryTagReportReader}.
+ * <p>
+ * Logs are written to the directory named by the
+ * {@code DIRECTORY_PROPERTY}, in files named
+ * {@code tags-<node>-<time>.log}. A file is rolled over to a new file
+ * once it reaches the size defined by the {@code FILE_SIZE_PROPERTY}, or
+ * once it has been open for the time defined by the
+ * {@code ROLL_INTERVAL_PROPERTY}, and closed files are truncated to the
+ * data that they hold.
+ * <p>
+ * Each file starts with a header holding a magic number, the format
+ * version, the node identifier and the time the file was created, and is
+ * followed by a sequence of records. Each record holds:
+ * <ul>
+ * <li>the length of the rest of the record, as a 4-byte integer, which is
+ *     written last so that a record that was not finished, or the empty
+ *     space after the last record, reads as zero</li>
+ * <li>the transaction identifier, as a variable-length count followed by
+ *     the bytes of the identifier</li>
+ * <li>the transaction start time, as a variable-length signed difference
+ *     from the start time of the previous record in the file, or from the
+ *     file's creation time for the first record</li>
+ * <li>each tag, in the order it was applied, as a variable-length signed
+ *     identifier, a type byte and the encoded value</li>
+ * </ul>
+ * Values are encoded by type: {@code null} as the type alone, integral
+ * numbers as variable-length signed integers, floating-point numbers as
+ * 8-byte doubles, booleans as a single byte, and anything else as the
+ * UTF-8 bytes of its {@code toString} value, preceded by their count.
+ * When the weight of a tag is not one, the high bit of its type byte is
+ * set and the weight follows the value as an 8-byte double.
+ * Variable-length integers use 7 bits per byte, low bits first, and
+ * signed values are zig-zag encoded so that small negative values stay
+ * small.
+ */
+public class BinaryTagReportListener implements BatchTagReportListener {
+
+    private static final String NAME =
+        BinaryTagReportListener.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    /** The property key used to define the directory for log files. */
+    public static final String DIRECTORY_PROPERTY = NAME + ".directory";
+
+    /** The default log directory. */
+    public static final String DEFAULT_DIRECTORY = ".";
+
+    /** The property key used to define the size of each log file. */
+    public static final String FILE_SIZE_PROPERTY = NAME + ".file.size";
+
+    /** The default log file size, in bytes. */
+    public static final String DEFAULT_FILE_SIZE = "67108864";
+
+    /**
+     * The property key used to define how long a log file is written
+     * before it is rolled over, in milliseconds, or {@code 0} to roll over
+     * only by size.
+     */
+    public static final String ROLL_INTERVAL_PROPERTY =
+        NAME + ".roll.interval";
+
+    /** The default roll over interval. */
+    public static final String DEFAULT_ROLL_INTERVAL = "3600000";
+
+    // the values shared with the reader that define the format
+    static final int MAGIC = 0x54414753;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    static final byte TYPE_STRING = 4;
+    static final byte WEIGHTED_FLAG = (byte) 0x80;
+
+    // the smallest file that can hold the header and a small record
+    private static final int MIN_FILE_SIZE = 1024;
+
+    private final File directory;
+    private final long nodeId;
+    private final int fileSize;
+    private final long rollInterval;
+
+    // the current file and its mapping, or null if no file is open, the
+    // time at which the file was opened, and the start time of the last
+    // record written, all used only by the reporting thread
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer buffer = null;
+    private long fileOpenTime;
+    private long lastStartTime;
+
+    // the consumer used to encode each tag of a report
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * Creates an instance of {@code BinaryTagReportListener}.
+     *
+     * @param p the node properties
+     * @param nodeId the node identifier
+     *
+     * @throws IllegalArgumentException if the properties are invalid
+     * @throws IllegalStateException if the log directory can't be used
+     */
+    public BinaryTagReportListener(Properties p, long nodeId) {
+        this.nodeId = nodeId;
+        directory = new File(p.getProperty(DIRECTORY_PROPERTY,
+                                           DEFAULT_DIRECTORY));
+        fileSize = Integer.parseInt(p.getProperty(FILE_SIZE_PROPERTY,
+                                                  DEFAULT_FILE_SIZE));
+        rollInterval =
+            Long.parseLong(p.getProperty(ROLL_INTERVAL_PROPERTY,
+                                         DEFAULT_ROLL_INTERVAL));
+        if ((fileSize < MIN_FILE_SIZE) || (rollInterval < 0)) {
+            throw new IllegalArgumentException("Invalid log settings: " +
+                                               fileSize + ", " +
+                                               rollInterval);
+        }
+        if ((! directory.isDirectory()) && (! directory.mkdirs())) {
+            throw new IllegalStateException("couldn't create log " +
+                                            "directory: " + directory);
+        }
+    }
+
+    /* Implement TagReportListener. */
+
+    /** {@inheritDoc} */
+    public void report(TagReport tagReport) {
+        checkRollInterval();
+        write(tagReport);
+    }
+
+    /** {@inheritDoc} */
+    public void report(List<TagReport> tagReports) {
+        checkRollInterval();
+        for (TagReport tagReport : tagReports) {
+            write(tagReport);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        closeFile();
+    }
+
+    /* Private helper methods. */
+
+    /** Rolls over the current file if it has been open too long. */
+    private void checkRollInterval() {
+        if ((buffer != null) && (rollInterval > 0) &&
+            (System.currentTimeMillis() - fileOpenTime >= rollInterval))
+        {
+            closeFile();
+        }
+    }
+
+    /**
+     * Appends a report to the current file, rolling over to a new file if
+     * it doesn't fit. Reports are dropped if a file can't be opened or a
+     * single report is larger than an empty file.
+     */
+    private void write(TagReport tagReport) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if ((buffer == null) && (! openFile())) {
+                return;
+            }
+            int start = buffer.position();
+            long previousStartTime = lastStartTime;
+            try {
+                encode(tagReport);
+                // the length is written last, so that readers never see a
+                // partial record
+                buffer.putInt(start, buffer.position() - start - 4);
+                return;
+            } catch (BufferOverflowException boe) {
+                // clear what was written, so the record still reads as
+                // the end of the file
+                for (int i = start; i < buffer.position(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.position(start);
+                lastStartTime = previousStartTime;
+                if (start == HEADER_SIZE) {
+                    break;
+                }
+                closeFile();
+            }
+        }
+        logger.warning("Dropped a report larger than the log file size");
+    }
+
+    /** Encodes a report at the current position of the buffer. */
+    private void encode(TagReport tagReport) {
+        buffer.putInt(0);
+        byte [] id = tagReport.getTransactionId();
+        putVarLong(buffer, id.length);
+        buffer.put(id);
+        long startTime = tagReport.getTransactionStartTime();
+        putVarLong(buffer, zigZag(startTime - lastStartTime));
+        lastStartTime = startTime;
+        encoder.tagReport = tagReport;
+        try {
+            tagReport.forEachTag(encoder);
+        } finally {
+            encoder.tagReport = null;
+        }
+    }
+
+    /** Encodes each tag of a report into the buffer. */
+    private final class Encoder implements TypedTagConsumer {
+        TagReport tagReport;
+        /** {@inheritDoc} */
+        public void consumeLong(long tag, long tagValue) {
+            byte flag = putTag(tag);
+            buffer.put((byte) (TYPE_LONG | flag));
+            putVarLong(buffer, zigZag(tagValue));
+            putWeight(tag, flag);
+        }
+        /** {@inheritDoc} */
+        public void consumeDouble(long tag, double tagValue) {
+            byte flag = putTag(tag);
+            buffer.put((byte) (TYPE_DOUBLE | flag));
+            buffer.putDouble(tagValue);
+            putWeight(tag, flag);
+        }
+        /** {@inheritDoc} */
+        public void consume(long tag, Object tagValue) {
+            byte flag = putTag(tag);
+            if (tagValue == null) {
+                buffer.put((byte) (TYPE_NULL | flag));
+            } else if ((tagValue instanceof Long) ||
+                       (tagValue instanceof Integer) ||
+                       (tagValue instanceof Short) ||
+                       (tagValue instanceof Byte))
+            {
+                buffer.put((byte) (TYPE_LONG | flag));
+                putVarLong(buffer,
+                           zigZag(((Number) tagValue).longValue()));
+            } else if ((tagValue instanceof Double) ||
+                       (tagValue instanceof Float))
+            {
+                buffer.put((byte) (TYPE_DOUBLE | flag));
+                buffer.putDouble(((Number) tagValue).doubleValue());
+            } else if (tagValue instanceof Boolean) {
+                buffer.put((byte) (TYPE_BOOLEAN | flag));
+                buffer.put(((Boolean) tagValue).booleanValue() ?
+                           (byte) 1 : (byte) 0);
+            } else {
+                buffer.put((byte) (TYPE_STRING | flag));
+                CharSequence chars = (tagValue instanceof CharSequence) ?
+                    (CharSequence) tagValue : tagValue.toString();
+                putUtf8(buffer, chars);
+            }
+            putWeight(tag, flag);
+        }
+        /** Writes the tag, returning the flag to set in the type byte. */
+        private byte putTag(long tag) {
+            putVarLong(buffer, zigZag(tag));
+            return (tagReport.getTagWeight(tag) == 1.0) ? 0 : WEIGHTED_FLAG;
+        }
+        /** Writes the tag's weight if the flag shows it is needed. */
+        private void putWeight(long tag, byte flag) {
+            if (flag != 0) {
+                buffer.putDouble(tagReport.getTagWeight(tag));
+            }
+        }
+    }
+
+    /**
+     * Creates and maps a new log file, returning {@code false} if this
+     * fails.
+     */
+    private boolean openFile() {
+        long now = System.currentTimeMillis();
+        File logFile = new File(directory, "tags-" + nodeId + "-" + now +
+                                ".log");
+        for (int i = 2; logFile.exists(); i++) {
+            logFile = new File(directory, "tags-" + nodeId + "-" + now +
+                               "-" + i + ".log");
+        }
+        try {
+            file = new RandomAccessFile(logFile, "rw");
+            channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                 fileSize);
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, "Couldn't open log file: " + logFile,
+                       ioe);
+            closeQuietly();
+            return false;
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(nodeId);
+        buffer.putLong(now);
+        fileOpenTime = now;
+        lastStartTime = now;
+        logger.fine("Opened log file: " + logFile);
+        return true;
+    }
+
+    /** Flushes, truncates and closes the current file, if any. */
+    private void closeFile() {
+        if (buffer == null) {
+            return;
+        }
+        long length = buffer.position();
+        buffer.force();
+        // there is no way to unmap the buffer until it is collected, so
+        // on platforms that refuse to truncate a mapped file the file is
+        // left at full size, which readers handle as empty space
+        try {
+            channel.truncate(length);
+        } catch (IOException ioe) {
+            logger.log(Level.FINE, "Couldn't truncate log file", ioe);
+        }
+        closeQuietly();
+    }
+
+    /** Closes the current file, ignoring any errors. */
+    private void closeQuietly() {
+        buffer = null;
+        channel = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                logger.log(Level.FINE, "Couldn't close log file", ioe);
+            }
+            file = null;
+        }
+    }
+
+    /** Zig-zag encodes a signed value so small magnitudes stay small. */
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /** Writes an unsigned value 7 bits at a time, low bits first. */
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the given characters, preceded by their
+     * count, without creating any intermediate arrays. Unpaired surrogates
+     * are written as {@code '?'}.
+     */
+    static void putUtf8(ByteBuffer out, CharSequence chars) {
+        int length = chars.length();
+        long count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                count += 1;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (isPair(chars, i)) {
+                count += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                count += 1;
+            } else {
+                count += 3;
+            }
+        }
+        putVarLong(out, count);
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (isPair(chars, i)) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /** Returns whether the given character is a surrogate. */
+    private static boolean isSurrogate(char c) {
+        return (c >= Character.MIN_SURROGATE) &&
+            (c <= Character.MAX_SURROGATE);
+    }
+
+    /** Returns whether a surrogate pair starts at the given index. */
+    private static boolean isPair(CharSequence chars, int i) {
+        return Character.isHighSurrogate(chars.charAt(i)) &&
+            (i + 1 < chars.length()) &&
+            Character.isLowSurrogate(chars.charAt(i + 1));
+    }
+
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import com.sun.sgs.services.impl.service.TagConsumer;
+import com.sun.sgs.services.impl.service.TagReport;
+import com.sun.sgs.services.impl.service.TagValueType;
+import com.sun.sgs.services.impl.service.TypedTagConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import java.math.BigInteger;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * Reads the logs written by a {@link BinaryTagReportListener}, returning
+ * each record as a {@code TagReport} in the order that it was written. A
+ * log may be read while it is still being written, in which case only the
+ * records that were complete when the reader was created are returned.
+ * <p>
+ * Reports returned by this class are not pooled, so they remain valid
+ * after {@code release} is called, and may be kept as long as needed.
+ * Values that were written as {@code long}, {@code double} or
+ * {@code String} values are typed as such, and may be read with the typed
+ * getters, while booleans are returned as {@code Boolean} objects. This
+ * class may also be run from the command line with a list of log files,
+ * and prints the reports in each file, one per line.
+ */
+public class BinaryTagReportReader {
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+    private final long nodeId;
+    private final long creationTime;
+
+    // the start time of the last record read, which the next record's
+    // start time is relative to
+    private long lastStartTime;
+
+    /**
+     * Opens the given log file for reading.
+     *
+     * @param logFile a file written by a {@code BinaryTagReportListener}
+     *
+     * @throws IOException if the file can't be read or is not a valid log
+     */
+    public BinaryTagReportReader(File logFile) throws IOException {
+        file = new RandomAccessFile(logFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+            if ((buffer.remaining() < BinaryTagReportListener.HEADER_SIZE) ||
+                (buffer.getInt() != BinaryTagReportListener.MAGIC))
+            {
+                throw new IOException("Not a tag log: " + logFile);
+            }
+            int version = buffer.getInt();
+            if (version != BinaryTagReportListener.VERSION) {
+                throw new IOException("Unsupported tag log version: " +
+                                      version);
+            }
+            nodeId = buffer.getLong();
+            creationTime = buffer.getLong();
+            lastStartTime = creationTime;
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Returns the identifier of the node that wrote the log.
+     *
+     * @return the node identifier
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the time at which the log was created, in milliseconds since
+     * January 1, 1970.
+     *
+     * @return the log's creation time
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the next report in the log, or {@code null} if there are no
+     * more complete reports.
+     *
+     * @return the next {@code TagReport} or {@code null}
+     *
+     * @throws IOException if the log is corrupt
+     */
+    public TagReport next() throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length == 0) {
+            // back up, so that the end is found again on the next call
+            buffer.position(buffer.position() - 4);
+            return null;
+        }
+        if ((length < 0) || (length > buffer.remaining())) {
+            throw new IOException("Invalid record length: " + length);
+        }
+        int end = buffer.position() + length;
+        try {
+            byte [] id = new byte[(int) getVarLong()];
+            buffer.get(id);
+            long startTime = lastStartTime + unZigZag(getVarLong());
+            RecordedTagReport report = new RecordedTagReport(id, startTime);
+            while (buffer.position() < end) {
+                readTag(report);
+            }
+            if (buffer.position() != end) {
+                throw new IOException("Record overran its length");
+            }
+            lastStartTime = startTime;
+            return report;
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Truncated record");
+        }
+    }
+
+    /**
+     * Closes the log file.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Prints the reports in each of the given log files.
+     *
+     * @param args the names of the log files
+     *
+     * @throws IOException if a file can't be read
+     */
+    public static void main(String [] args) throws IOException {
+        for (String fileName : args) {
+            BinaryTagReportReader reader =
+                new BinaryTagReportReader(new File(fileName));
+            try {
+                final StringBuilder line = new StringBuilder();
+                TagConsumer printer = new TagConsumer() {
+                        public void consume(long tag, Object tagValue) {
+                            line.append(' ').append(tag).append('=').
+                                append(tagValue);
+                        }
+                    };
+                for (TagReport report = reader.next(); report != null;
+                     report = reader.next())
+                {
+                    line.setLength(0);
+                    line.append(reader.getNodeId()).append(' ').
+                        append(new BigInteger(1, report.getTransactionId())).
+                        append(' ').append(report.getTransactionStartTime());
+                    report.forEachTag(printer);
+                    System.out.println(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /* Private helper methods. */
+
+    /** Reads a single tag and its value into the given report. */
+    private void readTag(RecordedTagReport report) throws IOException {
+        long tag = unZigZag(getVarLong());
+        byte type = buffer.get();
+        Object value;
+        switch (type & ~BinaryTagReportListener.WEIGHTED_FLAG) {
+        case BinaryTagReportListener.TYPE_NULL:
+            value = null;
+            break;
+        case BinaryTagReportListener.TYPE_LONG:
+            value = Long.valueOf(unZigZag(getVarLong()));
+            break;
+        case BinaryTagReportListener.TYPE_DOUBLE:
+            value = Double.valueOf(buffer.getDouble());
+            break;
+        case BinaryTagReportListener.TYPE_BOOLEAN:
+            value = Boolean.valueOf(buffer.get() != 0);
+            break;
+        case BinaryTagReportListener.TYPE_STRING:
+            byte [] bytes = new byte[(int) getVarLong()];
+            buffer.get(bytes);
+            value = toString(bytes);
+            break;
+        default:
+            throw new IOException("Unknown value type: " + type);
+        }
+        double weight = ((type & BinaryTagReportListener.WEIGHTED_FLAG) != 0) ?
+            buffer.getDouble() : 1.0;
+        report.add(tag, value, weight);
+    }
+
+    /** Reads an unsigned value written 7 bits at a time. */
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid variable-length value");
+    }
+
+    /** Reverses the zig-zag encoding of a signed value. */
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Decodes UTF-8 bytes. */
+    private static String toString(byte [] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError("UTF-8 is always supported");
+        }
+    }
+
+    /** A report that was read from a log. */
+    private static final class RecordedTagReport implements TagReport {
+        private final byte [] id;
+        private final long startTime;
+        private long [] tags = new long[4];
+        private Object [] values = new Object[4];
+        private double [] weights = new double[4];
+        private int size = 0;
+        RecordedTagReport(byte [] id, long startTime) {
+            this.id = id;
+            this.startTime = startTime;
+        }
+        /** Adds a tag, growing the arrays as needed. */
+        void add(long tag, Object value, double weight) {
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            tags[size] = tag;
+            values[size] = value;
+            weights[size] = weight;
+            size++;
+        }
+        /** Returns the index of the given tag, or -1 if not present. */
+        private int indexOf(long tag) {
+            for (int i = 0; i < size; i++) {
+                if (tags[i] == tag) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        /** {@inheritDoc} */
+        public byte [] getTransactionId() {
+            return id;
+        }
+        /** {@inheritDoc} */
+        public long getTransactionStartTime() {
+            return startTime;
+        }
+        /** {@inheritDoc} */
+        public Collection<Long> getTags() {
+            return new AbstractList<Long>() {
+                public Long get(int index) {
+                    if (index >= size) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    return tags[index];
+                }
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        /** {@inheritDoc} */
+        public long [] getTagArray() {
+            return Arrays.copyOf(tags, size);
+        }
+        /** {@inheritDoc} */
+        public void forEachTag(TagConsumer consumer) {
+            for (int i = 0; i < size; i++) {
+                if ((consumer instanceof TypedTagConsumer) &&
+                    (values[i] instanceof Long))
+                {
+                    ((TypedTagConsumer) consumer).
+                        consumeLong(tags[i], (Long) values[i]);
+                } else if ((consumer instanceof TypedTagConsumer) &&
+                           (values[i] instanceof Double))
+                {
+                    ((TypedTagConsumer) consumer).
+                        consumeDouble(tags[i], (Double) values[i]);
+                } else {
+                    consumer.consume(tags[i], values[i]);
+                }
+            }
+        }
+        /** {@inheritDoc} */
+        public Object getTagValue(long tag) {
+            int index = indexOf(tag);
+            return (index < 0) ? null : values[index];
+        }
+        /** {@inheritDoc} */
+        public TagValueType getTagValueType(long tag) {
+            Object value = getTagValue(tag);
+            if (value == null) {
+                return TagValueType.NONE;
+            } else if (value instanceof Long) {
+                return TagValueType.LONG;
+            } else if (value instanceof Double) {
+                return TagValueType.DOUBLE;
+            } else if (value instanceof String) {
+                return TagValueType.STRING;
+            }
+            return TagValueType.OBJECT;
+        }
+        /** {@inheritDoc} */
+        public long getLongTagValue(long tag) {
+            return (Long) getTypedValue(tag, TagValueType.LONG);
+        }
+        /** {@inheritDoc} */
+        public double getDoubleTagValue(long tag) {
+            return (Double) getTypedValue(tag, TagValueType.DOUBLE);
+        }
+        /** {@inheritDoc} */
+        public String getStringTagValue(long tag) {
+            return (String) getTypedValue(tag, TagValueType.STRING);
+        }
+        /** Returns a tag's value, checking that it has the given type. */
+        private Object getTypedValue(long tag, TagValueType type) {
+            if (getTagValueType(tag) != type) {
+                throw new IllegalArgumentException("Tag " + tag + " does " +
+                                                   "not have a " + type +
+                                                   " value");
+            }
+            return getTagValue(tag);
+        }
+        /** {@inheritDoc} */
+        public double getTagWeight(long tag) {
+            int index = indexOf(tag);
+            return (index < 0) ? 0 : weights[index];
+        }
+        /** {@inheritDoc} */
+        public void retain() {
+            // reports read from a log are not pooled
+        }
+        /** {@inheritDoc} */
+        public void release() {
+            // reports read from a log are not pooled
+        }
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A small pool of connections to the database described by an
+ * {@link SQLProperties}, which may be shared by any number of threads and
+ * listeners. Pools are obtained through
+ * {@link SQLProperties#getConnectionPool}, which returns the same pool for
+ * each use of the same database, and each user calls {@code close} once
+ * when it is done with the pool.
+ * <p>
+ * A thread calls {@code acquire} to get exclusive use of a connection, and
+ * must call {@code release} when it is done, whether or not its work
+ * succeeded. At most {@code SQL_POOL_SIZE_PROPERTY} connections are open
+ * at once, and {@code acquire} waits for a connection to be released if
+ * all of them are in use. Each idle connection is checked with
+ * {@code Connection.isValid} before it is handed out, and is replaced if
+ * it has failed, for instance because the database was restarted. New
+ * connections are opened with up to {@code SQL_RECONNECT_ATTEMPTS_PROPERTY}
+ * attempts, waiting between attempts for a delay that starts at
+ * {@code SQL_RECONNECT_DELAY_PROPERTY} and doubles up to
+ * {@code SQL_RECONNECT_MAX_DELAY_PROPERTY}.
+ * <p>
+ * Each connection caches the statements prepared through it, so users
+ * prepare their statements on every use instead of holding them, and
+ * statements are prepared again automatically when a connection is
+ * replaced. All connections are opened with auto-commit disabled.
+ */
+public class SQLConnectionPool {
+
+    private static final String NAME = SQLConnectionPool.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    // the properties used to open connections, and the key under which
+    // this pool is shared
+    private final SQLProperties sqlProps;
+    private final String key;
+
+    // the permits for open connections, and the idle connections
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<PooledConnection> idle =
+        new ConcurrentLinkedQueue<PooledConnection>();
+
+    // the validation and reconnect settings
+    private final int validationTimeout;
+    private final int reconnectAttempts;
+    private final long reconnectDelay;
+    private final long reconnectMaxDelay;
+
+    // the number of users, guarded by the map of pools in SQLProperties,
+    // and whether the pool has been closed
+    int users = 1;
+    private volatile boolean closed = false;
+
+    /** Creates an instance of {@code SQLConnectionPool}. */
+    SQLConnectionPool(SQLProperties sqlProps, String key, int size,
+                      int validationTimeout, int reconnectAttempts,
+                      long reconnectDelay, long reconnectMaxDelay)
+    {
+        if ((size < 1) || (validationTimeout < 0) ||
+            (reconnectAttempts < 1) || (reconnectDelay < 0) ||
+            (reconnectMaxDelay < reconnectDelay))
+        {
+            throw new IllegalArgumentException("Invalid pool settings");
+        }
+        this.sqlProps = sqlProps;
+        this.key = key;
+        this.permits = new Semaphore(size, true);
+        this.validationTimeout = validationTimeout;
+        this.reconnectAttempts = reconnectAttempts;
+        this.reconnectDelay = reconnectDelay;
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    /**
+     * Returns a valid connection for the exclusive use of the caller,
+     * waiting for one to be released if all are in use, and opening a new
+     * one if needed.
+     *
+     * @return a {@code PooledConnection}
+     *
+     * @throws SQLException if a connection can't be opened, or the caller
+     *                      is interrupted while waiting
+     * @throws IllegalStateException if the pool has been closed
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection",
+                                   ie);
+        }
+        try {
+            PooledConnection conn = idle.poll();
+            while (conn != null) {
+                if (conn.isValid(validationTimeout)) {
+                    return conn;
+                }
+                logger.fine("Replacing a failed connection");
+                conn.close();
+                conn = idle.poll();
+            }
+            return new PooledConnection(connect());
+        } catch (SQLException sqle) {
+            permits.release();
+            throw sqle;
+        } catch (RuntimeException re) {
+            permits.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. This must be called exactly once
+     * for each successful call to {@code acquire}.
+     *
+     * @param conn a connection returned by {@code acquire}
+     */
+    public void release(PooledConnection conn) {
+        if (closed) {
+            conn.close();
+        } else {
+            idle.offer(conn);
+            // the pool may have closed since it was checked
+            if (closed && idle.remove(conn)) {
+                conn.close();
+            }
+        }
+        permits.release();
+    }
+
+    /**
+     * Tells the pool that the caller is done with it. Once every user has
+     * closed the pool, its idle connections are closed, as are any
+     * connections that are released later.
+     */
+    public void close() {
+        if (SQLProperties.releasePool(key, this)) {
+            closed = true;
+            for (PooledConnection conn = idle.poll(); conn != null;
+                 conn = idle.poll())
+            {
+                conn.close();
+            }
+        }
+    }
+
+    /* Private methods. */
+
+    /** Opens a connection, retrying with an increasing delay. */
+    private Connection connect() throws SQLException {
+        long delay = reconnectDelay;
+        for (int attempt = 1; true; attempt++) {
+            try {
+                Connection connection = sqlProps.getConnection();
+                connection.setAutoCommit(false);
+                return connection;
+            } catch (SQLException sqle) {
+                if (attempt >= reconnectAttempts) {
+                    throw sqle;
+                }
+                logger.log(Level.FINE, "Failed to connect, retrying in " +
+                           delay + " ms", sqle);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while reconnecting", ie);
+            }
+            delay = Math.min(delay * 2, reconnectMaxDelay);
+        }
+    }
+
+    /**
+     * A connection from the pool, along with the statements that have been
+     * prepared on it. Instances may only be used by the thread that
+     * acquired them, until they are released.
+     */
+    public static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String,PreparedStatement> statements =
+            new HashMap<String,PreparedStatement>();
+        /** Creates an instance of PooledConnection. */
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+        /**
+         * Returns the underlying connection.
+         *
+         * @return the {@code Connection}
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+        /**
+         * Returns a statement for the given SQL, preparing it the first
+         * time it is used on this connection.
+         *
+         * @param sql the statement's SQL
+         *
+         * @return the {@code PreparedStatement}
+         *
+         * @throws SQLException if the statement can't be prepared
+         */
+        public PreparedStatement prepareStatement(String sql)
+            throws SQLException
+        {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+        /**
+         * Returns a statement for the given SQL that returns the keys it
+         * generates, preparing it the first time it is used on this
+         * connection.
+         *
+         * @param sql the statement's SQL
+         *
+         * @return the {@code PreparedStatement}
+         *
+         * @throws SQLException if the statement can't be prepared
+         */
+        public PreparedStatement prepareStatementWithKeys(String sql)
+            throws SQLException
+        {
+            // the flag is kept in the key so that the same SQL may also be
+            // prepared without returning keys
+            String statementKey = "keys:" + sql;
+            PreparedStatement stmt = statements.get(statementKey);
+            if (stmt == null) {
+                stmt = connection.
+                    prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                statements.put(statementKey, stmt);
+            }
+            return stmt;
+        }
+        /**
+         * Commits the current transaction.
+         *
+         * @throws SQLException if the commit fails
+         */
+        public void commit() throws SQLException {
+            connection.commit();
+        }
+        /**
+         * Rolls back the current transaction, first clearing any batches
+         * left in the prepared statements. Failures are logged, since the
+         * connection is checked before it is used again.
+         */
+        public void rollback() {
+            try {
+                for (PreparedStatement stmt : statements.values()) {
+                    stmt.clearBatch();
+                }
+                connection.rollback();
+            } catch (SQLException sqle) {
+                logger.log(Level.FINE, "Failed to roll back", sqle);
+            }
+        }
+        /** Returns whether the connection still works. */
+        boolean isValid(int timeout) {
+            try {
+                return connection.isValid(timeout);
+            } catch (SQLException sqle) {
+                return false;
+            }
+        }
+        /** Closes the connection, ignoring any errors. */
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException sqle) {
+                logger.log(Level.FINE, "Failed to close a connection", sqle);
+            }
+        }
+    }
+
+}
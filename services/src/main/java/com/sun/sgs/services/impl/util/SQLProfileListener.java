@@ -26,39 +26,76 @@ import com.sun.sgs.kernel.AccessReporter.AccessType;
 import com.sun.sgs.kernel.ComponentRegistry;
 
 import com.sun.sgs.profile.AccessedObjectsDetail;
-import com.sun.sgs.profile.AccessedObjectsDetail.ConflictType;
 import com.sun.sgs.profile.ProfileListener;
 import com.sun.sgs.profile.ProfileParticipantDetail;
 import com.sun.sgs.profile.ProfileReport;
 
 import java.beans.PropertyChangeEvent;
 
+import java.lang.management.ManagementFactory;
+
 import java.math.BigInteger;
 
 import java.net.InetAddress;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Queue;
 import java.util.Set;
 
-
-public class SQLProfileListener implements ProfileListener {
-
-    // see comment in SQLTagReportListener about these fields
-    private final Connection dbConnection;
-    private final PreparedStatement coreStatement;
-    private final PreparedStatement participantStatement;
-    private final PreparedStatement accessBaseStatement;
-    private final PreparedStatement accessObjsStatement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * An implementation of {@code ProfileListener} that writes the details of
+ * each profiled task to an SQL container. The fields that are written are
+ * copied from each report into a compact, immutable record, which is
+ * queued for a background writer thread, so that reporting never waits
+ * for the database. The queue holds up to {@code QUEUE_SIZE_PROPERTY}
+ * records, and reports that arrive while it is full are dropped and
+ * counted.
+ * <p>
+ * The writer collects records until there are as many as the
+ * {@code COMMIT_SIZE_PROPERTY}, or until the oldest has waited for the
+ * time defined by the {@code FLUSH_INTERVAL_PROPERTY}, and then writes
+ * them to all four tables with JDBC batches and commits them together.
+ * On shutdown, the writer writes everything that was queued before it
+ * exits. The number of reports written and dropped and the time taken by
+ * each commit are available through the {@link SQLProfileListenerMXBean}
+ * that this listener registers once the node identifier is known, and
+ * each commit is logged at {@code FINE}.
+ * <p>
+ * The {@code WRITER_THREADS_PROPERTY} defines how many writer threads
+ * take records from the queue. Each writes its commits on its own
+ * connection from the {@link SQLConnectionPool} shared by all users of the
+ * database. A connection that fails, for instance because the database
+ * restarted, is replaced and its statements are prepared again.
+ */
+public class SQLProfileListener
+    implements ProfileListener, SQLProfileListenerMXBean
+{
+
+    private static final String NAME = SQLProfileListener.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    // the pool that provides connections to the writer threads
+    private final SQLConnectionPool pool;
 
     // the statement used to insert core data
     private static final String coreStatementString =
@@ -86,18 +123,63 @@ public class SQLProfileListener implements ProfileListener {
         "(task, idx, id, for_read, description, src)" +
         "VALUES (?,?,?,?,?,?)";
 
-    // the queue used to collect pending reports
-    private final Queue<ProfileReport> reportQueue;
-
-    /** The property key used to define how many reports are queued up. */
-    public static final String COMMIT_SIZE_PROPERTY =
-        SQLProfileListener.class.getName() + ".commit.size";
+    /** The property key used to define how many reports are committed. */
+    public static final String COMMIT_SIZE_PROPERTY = NAME + ".commit.size";
 
-    /** The default report queue size. */
+    /** The default commit size. */
     public static final String DEFAULT_COMMIT_SIZE = "15";
 
-    // the report queue size being used
+    /**
+     * The property key used to define the longest time in milliseconds
+     * that a report is queued before it is written.
+     */
+    public static final String FLUSH_INTERVAL_PROPERTY =
+        NAME + ".flush.interval";
+
+    /** The default flush interval. */
+    public static final String DEFAULT_FLUSH_INTERVAL = "1000";
+
+    /** The property key used to define how many reports may be queued. */
+    public static final String QUEUE_SIZE_PROPERTY = NAME + ".queue.size";
+
+    /** The default queue size. */
+    public static final String DEFAULT_QUEUE_SIZE = "10000";
+
+    /** The property key used to define how many writer threads are used. */
+    public static final String WRITER_THREADS_PROPERTY =
+        NAME + ".writer.threads";
+
+    /** The default number of writer threads. */
+    public static final String DEFAULT_WRITER_THREADS = "1";
+
+    // the commit size and flush interval being used
     private final int commitSize;
+    private final long flushInterval;
+
+    // the records waiting to be written, the marker queued to wake the
+    // writer at shutdown, and whether the listener has been shut down
+    private final BlockingQueue<ProfileRecord> queue;
+    private static final ProfileRecord END_MARKER = new ProfileRecord();
+    private volatile boolean closed = false;
+
+    // the threads that write to the database
+    private final Thread [] writerThreads;
+
+    // the node identifier, or -1 until it is announced
+    private volatile short nodeId = -1;
+
+    // statistics
+    private final AtomicLong reportsWritten = new AtomicLong(0);
+    private final AtomicLong reportsDropped = new AtomicLong(0);
+    private final AtomicLong reportsOverflowed = new AtomicLong(0);
+    private final AtomicLong commits = new AtomicLong(0);
+    private final AtomicLong failedCommits = new AtomicLong(0);
+    private final AtomicLong totalCommitTime = new AtomicLong(0);
+    private final AtomicLong maxCommitTime = new AtomicLong(0);
+    private volatile long lastCommitTime = 0;
+
+    // the name of the management bean, or null if it is not registered
+    private ObjectName mxbeanName = null;
 
     /**
      * Creates an instance of {@code SQLProfileListener}.
@@ -117,31 +199,57 @@ public class SQLProfileListener implements ProfileListener {
         if (commitSize < 1) {
             throw new IllegalStateException("commit size must be positive");
         }
-        reportQueue = new ArrayDeque<ProfileReport>(commitSize);
+        flushInterval =
+            Long.parseLong(p.getProperty(FLUSH_INTERVAL_PROPERTY,
+                                         DEFAULT_FLUSH_INTERVAL));
+        if (flushInterval < 1) {
+            throw new IllegalStateException("flush interval must be " +
+                                            "positive");
+        }
+        int queueSize =
+            Integer.parseInt(p.getProperty(QUEUE_SIZE_PROPERTY,
+                                           DEFAULT_QUEUE_SIZE));
+        if (queueSize < 1) {
+            throw new IllegalStateException("queue size must be positive");
+        }
+        queue = new ArrayBlockingQueue<ProfileRecord>(queueSize);
+        int writers =
+            Integer.parseInt(p.getProperty(WRITER_THREADS_PROPERTY,
+                                           DEFAULT_WRITER_THREADS));
+        if (writers < 1) {
+            throw new IllegalStateException("writer threads must be " +
+                                            "positive");
+        }
 
         try {
             SQLProperties sqlProps = new SQLProperties(p);
-            dbConnection = sqlProps.getConnection();
+            pool = sqlProps.getConnectionPool();
         } catch (SQLException sqle) {
             throw new IllegalStateException("couldn't create connection", sqle);
         }
 
+        // check that the database is reachable and the statements are valid
         try {
-            dbConnection.setAutoCommit(false);
-
-            coreStatement = dbConnection.
-                prepareStatement(coreStatementString,
-                                 Statement.RETURN_GENERATED_KEYS);
-            participantStatement =
-                dbConnection.prepareStatement(participantStatementString);
-            accessBaseStatement =
-                dbConnection.prepareStatement(accessBaseStatementString);
-            accessObjsStatement =
-                dbConnection.prepareStatement(accessObjsStatementString);
+            SQLConnectionPool.PooledConnection conn = pool.acquire();
+            try {
+                conn.prepareStatementWithKeys(coreStatementString);
+                conn.prepareStatement(participantStatementString);
+                conn.prepareStatement(accessBaseStatementString);
+                conn.prepareStatement(accessObjsStatementString);
+            } finally {
+                pool.release(conn);
+            }
         } catch (SQLException sqle) {
-            shutdown();
+            pool.close();
             throw new IllegalStateException("couldn't setup database", sqle);
         }
+
+        writerThreads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            writerThreads[i] = new Thread(new Writer(), NAME + "-writer-" + i);
+            writerThreads[i].setDaemon(true);
+            writerThreads[i].start();
+        }
     }
 
     /* Implement ProfileListener. */
@@ -152,164 +260,481 @@ public class SQLProfileListener implements ProfileListener {
         if (event.getPropertyName().equals("com.sun.sgs.profile.nodeid")) {
             try {
                 // set it for all future use as the first param
-                short nodeId = ((Long) event.getNewValue()).shortValue();
-                coreStatement.setShort(1, nodeId);
+                short id = ((Long) event.getNewValue()).shortValue();
+                nodeId = id;
 
                 // insert into the nodes table some detail about this node
                 String addr = InetAddress.getLocalHost().getHostAddress();
-                Statement nodeStmt = dbConnection.createStatement();
-                nodeStmt.executeUpdate("INSERT INTO nodes (id, addr) " +
-                                       "VALUES (" + nodeId + ",\'" + addr
-                                       + "\')");
-                dbConnection.commit();
-                nodeStmt.close();
+                SQLConnectionPool.PooledConnection conn = pool.acquire();
+                try {
+                    Statement nodeStmt =
+                        conn.getConnection().createStatement();
+                    try {
+                        nodeStmt.executeUpdate("INSERT INTO nodes " +
+                                               "(id, addr) VALUES (" + id +
+                                               ",\'" + addr + "\')");
+                        conn.commit();
+                    } finally {
+                        nodeStmt.close();
+                    }
+                } catch (SQLException sqle) {
+                    conn.rollback();
+                    throw sqle;
+                } finally {
+                    pool.release(conn);
+                }
+
+                registerMXBean(id);
             } catch (Exception e) {
-                e.printStackTrace();
+                logger.log(Level.WARNING, "Couldn't record node details", e);
             }
         }
     }
 
     /** {@inheritDoc} */
     public void report(ProfileReport profileReport) {
+        if (closed) {
+            return;
+        }
+        if (! queue.offer(new ProfileRecord(profileReport))) {
+            reportsOverflowed.incrementAndGet();
+            logger.log(Level.FINEST, "Dropped a report because the queue " +
+                       "was full");
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        // the writers write anything that is left before they exit, and
+        // a writer that is not woken by a marker is either busy, and will
+        // see that the listener is closed, or sees it within the flush
+        // interval
+        closed = true;
+        for (int i = 0; i < writerThreads.length; i++) {
+            queue.offer(END_MARKER);
+        }
         try {
-            // only proceed if we've hit the commit size
-            if (reportQueue.size() < commitSize) {
-                return;
+            for (Thread writerThread : writerThreads) {
+                writerThread.join();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted waiting for the writers to finish");
+        }
+        long overflowed = reportsOverflowed.get();
+        if (overflowed > 0) {
+            logger.warning("Dropped " + overflowed + " reports because " +
+                           "the queue was full");
+        }
+        if (mxbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().
+                    unregisterMBean(mxbeanName);
+            } catch (JMException jme) {
+                logger.log(Level.FINE, "Could not unregister management " +
+                           "bean", jme);
             }
-            long start = System.currentTimeMillis();
+        }
+        pool.close();
+    }
+
+    /* Implement SQLProfileListenerMXBean. */
+
+    /** {@inheritDoc} */
+    public long getReportsWritten() {
+        return reportsWritten.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getReportsDropped() {
+        return reportsDropped.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getReportsOverflowed() {
+        return reportsOverflowed.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getQueuedReports() {
+        return queue.size();
+    }
+
+    /** {@inheritDoc} */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getFailedCommits() {
+        return failedCommits.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getLastCommitTime() {
+        return lastCommitTime;
+    }
+
+    /** {@inheritDoc} */
+    public long getMaxCommitTime() {
+        return maxCommitTime.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getTotalCommitTime() {
+        return totalCommitTime.get();
+    }
+
+    /* Private helper methods. */
+
+    /**
+     * Writes the given records to the four tables, batching the inserts
+     * for each table, and commits them together. If anything fails, the
+     * records are rolled back and discarded.
+     */
+    private void write(List<ProfileRecord> records) {
+        int count = records.size();
+        long start = System.currentTimeMillis();
+        SQLConnectionPool.PooledConnection conn = null;
+        try {
+            conn = pool.acquire();
+            PreparedStatement coreStatement =
+                conn.prepareStatementWithKeys(coreStatementString);
+            PreparedStatement participantStatement =
+                conn.prepareStatement(participantStatementString);
+            PreparedStatement accessBaseStatement =
+                conn.prepareStatement(accessBaseStatementString);
+            PreparedStatement accessObjsStatement =
+                conn.prepareStatement(accessObjsStatementString);
+
             // start with the core table to get the auto-generated keys that
             // are used for the other inserts
-            for (ProfileReport report : reportQueue) {
-                insertCoreDetail(coreStatement, report);
+            coreStatement.setShort(1, nodeId);
+            for (ProfileRecord record : records) {
+                record.insertCoreDetail(coreStatement);
             }
             coreStatement.executeBatch();
             ResultSet rs = coreStatement.getGeneratedKeys();
-            if (! rs.first()) {
-                throw new IllegalStateException("no task keys generated");
-            }
-            do {
-                long key = rs.getLong(1);
-                ProfileReport report = reportQueue.remove();
-
-                insertParticipantDetail(participantStatement,
-                                        report.getParticipantDetails(), key);
-
-                AccessedObjectsDetail accessDetail =
-                    report.getAccessedObjectsDetail();
-                if (accessDetail != null) {
-                    insertAccessBaseDetail(accessBaseStatement,
-                                           accessDetail, key);
-                    insertAccessObjsDetail(accessObjsStatement,
-                                           accessDetail.getAccessedObjects(),
-                                           key);
+            try {
+                for (ProfileRecord record : records) {
+                    if (! rs.next()) {
+                        throw new SQLException("not enough task keys");
+                    }
+                    long key = rs.getLong(1);
+                    record.insertParticipantDetail(participantStatement,
+                                                   key);
+                    record.insertAccessDetail(accessBaseStatement,
+                                              accessObjsStatement, key);
                 }
-            } while (rs.next());
-            if (! reportQueue.isEmpty()) {
-                throw new IllegalStateException("not enough task keys");
+            } finally {
+                rs.close();
             }
-            dbConnection.commit();
-            System.out.println("Core: " + (System.currentTimeMillis() - start));
+            participantStatement.executeBatch();
+            accessBaseStatement.executeBatch();
+            accessObjsStatement.executeBatch();
+            conn.commit();
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            // TODO: we might want a more formal error processing mechanism
+            reportsDropped.addAndGet(count);
+            failedCommits.incrementAndGet();
+            logger.log(Level.WARNING, "Failed to write profile data, " +
+                       "discarding " + count + " reports", sqle);
+            if (conn != null) {
+                conn.rollback();
+            }
+            return;
         } finally {
-            reportQueue.add(profileReport);
+            if (conn != null) {
+                pool.release(conn);
+            }
+        }
+
+        long time = System.currentTimeMillis() - start;
+        reportsWritten.addAndGet(count);
+        commits.incrementAndGet();
+        totalCommitTime.addAndGet(time);
+        lastCommitTime = time;
+        long max = maxCommitTime.get();
+        while ((time > max) && (! maxCommitTime.compareAndSet(max, time))) {
+            max = maxCommitTime.get();
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Committed " + count + " reports in " + time + " ms");
         }
     }
 
-    /** {@inheritDoc} */
-    public void shutdown() {
+    /** Registers the management bean for the given node. */
+    private synchronized void registerMXBean(long id) {
+        if (mxbeanName != null) {
+            return;
+        }
         try {
-            dbConnection.close();
-        } catch (SQLException sqle) {}
+            ObjectName name = new ObjectName(MXBEAN_NAME + ",node=" + id);
+            ManagementFactory.getPlatformMBeanServer().
+                registerMBean(this, name);
+            mxbeanName = name;
+        } catch (JMException jme) {
+            logger.log(Level.WARNING, "Could not register management bean",
+                       jme);
+        }
     }
 
-    /* Private helper methods. */
-
     /** Turns a transaction identifier into a long. */
     private static long txnToLong(byte [] txn) {
         return (new BigInteger(1, txn)).longValue();
     }
 
-    /** Inserts all core task detail. */
-    private static void insertCoreDetail(PreparedStatement stmt,
-                                         ProfileReport report)
-        throws SQLException
-    {
-        if (report.wasTaskTransactional()) {
-            stmt.setLong(2, txnToLong(report.getTransactionId()));
-        } else {
-            stmt.setNull(2, Types.BIGINT);
+    /**
+     * Private class that takes records from the queue and writes them in
+     * commits of up to the commit size, writing a partial commit once its
+     * oldest record has waited for the flush interval.
+     */
+    private class Writer implements Runnable {
+        /** {@inheritDoc} */
+        public void run() {
+            List<ProfileRecord> records =
+                new ArrayList<ProfileRecord>(commitSize);
+            long oldestTime = 0;
+            while (true) {
+                long wait = records.isEmpty() ? flushInterval :
+                    oldestTime + flushInterval - System.currentTimeMillis();
+                ProfileRecord record = null;
+                try {
+                    if (wait > 0) {
+                        record = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ie) {
+                    logger.log(Level.FINE, "Writer was interrupted", ie);
+                }
+                if ((record != null) && (record != END_MARKER)) {
+                    if (records.isEmpty()) {
+                        oldestTime = System.currentTimeMillis();
+                    }
+                    records.add(record);
+                }
+                while ((records.size() < commitSize) &&
+                       ((record = queue.poll()) != null))
+                {
+                    if (record != END_MARKER) {
+                        records.add(record);
+                    }
+                }
+                boolean done = closed && queue.isEmpty();
+                if ((! records.isEmpty()) &&
+                    (done || (records.size() >= commitSize) ||
+                     (System.currentTimeMillis() - oldestTime >=
+                      flushInterval)))
+                {
+                    write(records);
+                    records.clear();
+                }
+                if (done && records.isEmpty()) {
+                    return;
+                }
+            }
         }
-        stmt.setString(3, report.getTask().getBaseTaskType());
-        stmt.setString(4, report.getTaskOwner().getName());
-        stmt.setBoolean(5, report.wasTaskSuccessful());
-        stmt.setLong(6, report.getScheduledStartTime());
-        stmt.setLong(7, report.getActualStartTime());
-        stmt.setShort(8, (short) report.getRunningTime());
-        stmt.setShort(9, (short) report.getRetryCount());
-        stmt.setShort(10, (short) report.getReadyCount());
-        stmt.addBatch();
     }
 
-    /** Inserts all participant detail. */
-    private static void insertParticipantDetail(PreparedStatement stmt,
-                                                Set<ProfileParticipantDetail>
-                                                details,
-                                                long taskKey)
-        throws SQLException
-    {
-        stmt.setLong(1, taskKey);
-        for (ProfileParticipantDetail detail : details) {
-            stmt.setString(2, detail.getParticipantName());
-            stmt.setBoolean(3, detail.wasPrepared());
-            stmt.setBoolean(4, detail.wasReadOnly());
-            stmt.setBoolean(5, detail.wasCommitted());
-            stmt.setBoolean(6, detail.wasCommittedDirectly());
-            stmt.setShort(7, (short) detail.getPrepareTime());
-            stmt.setShort(8,(short) (detail.wasCommitted() ?
-                                     detail.getCommitTime() :
-                                     detail.getAbortTime()));
-            stmt.executeUpdate();
+    /**
+     * Private class holding a copy of the fields written for a single
+     * report, so that the report itself is not kept.
+     */
+    private static final class ProfileRecord {
+        // core detail
+        private final boolean transactional;
+        private final long txn;
+        private final String taskType;
+        private final String taskOwner;
+        private final boolean successful;
+        private final long scheduledStartTime;
+        private final long actualStartTime;
+        private final short runningTime;
+        private final short retryCount;
+        private final short readyCount;
+        // participant detail, one entry per participant
+        private final String [] partNames;
+        private final byte [] partFlags;
+        private final short [] partPrepareTimes;
+        private final short [] partFinishTimes;
+        // base access detail, where a negative conflict means there was no
+        // access detail
+        private final short conflict;
+        private final boolean hasConflictingTxn;
+        private final long conflictingTxn;
+        // object access detail, one entry per access
+        private final String [] objIds;
+        private final boolean [] objForRead;
+        private final String [] objDescriptions;
+        private final String [] objSources;
+
+        // the participant flags
+        private static final byte PREPARED = 1;
+        private static final byte READ_ONLY = 2;
+        private static final byte COMMITTED = 4;
+        private static final byte DIRECT = 8;
+
+        /** Creates an empty record, used as a marker. */
+        ProfileRecord() {
+            transactional = false;
+            txn = 0;
+            taskType = null;
+            taskOwner = null;
+            successful = false;
+            scheduledStartTime = 0;
+            actualStartTime = 0;
+            runningTime = 0;
+            retryCount = 0;
+            readyCount = 0;
+            partNames = null;
+            partFlags = null;
+            partPrepareTimes = null;
+            partFinishTimes = null;
+            conflict = -1;
+            hasConflictingTxn = false;
+            conflictingTxn = 0;
+            objIds = null;
+            objForRead = null;
+            objDescriptions = null;
+            objSources = null;
         }
-    }
 
-    /** Inserts base detail about all object accesses. */
-    private static void insertAccessBaseDetail(PreparedStatement stmt,
-                                               AccessedObjectsDetail detail,
-                                               long taskKey)
-        throws SQLException
-    {
-        stmt.setLong(1, taskKey);
-        stmt.setShort(2, (short) detail.getConflictType().ordinal());
-        byte [] txn = detail.getConflictingId();
-        if (txn != null) {
-            stmt.setLong(3, txnToLong(txn));
-        } else {
-            stmt.setNull(3, Types.BIGINT);
+        /** Copies the fields that are written from a report. */
+        ProfileRecord(ProfileReport report) {
+            transactional = report.wasTaskTransactional();
+            txn = transactional ? txnToLong(report.getTransactionId()) : 0;
+            taskType = report.getTask().getBaseTaskType();
+            taskOwner = report.getTaskOwner().getName();
+            successful = report.wasTaskSuccessful();
+            scheduledStartTime = report.getScheduledStartTime();
+            actualStartTime = report.getActualStartTime();
+            runningTime = (short) report.getRunningTime();
+            retryCount = (short) report.getRetryCount();
+            readyCount = (short) report.getReadyCount();
+
+            Set<ProfileParticipantDetail> details =
+                report.getParticipantDetails();
+            int parts = details.size();
+            partNames = new String[parts];
+            partFlags = new byte[parts];
+            partPrepareTimes = new short[parts];
+            partFinishTimes = new short[parts];
+            int i = 0;
+            for (ProfileParticipantDetail detail : details) {
+                partNames[i] = detail.getParticipantName();
+                partFlags[i] = (byte)
+                    ((detail.wasPrepared() ? PREPARED : 0) |
+                     (detail.wasReadOnly() ? READ_ONLY : 0) |
+                     (detail.wasCommitted() ? COMMITTED : 0) |
+                     (detail.wasCommittedDirectly() ? DIRECT : 0));
+                partPrepareTimes[i] = (short) detail.getPrepareTime();
+                partFinishTimes[i] = (short) (detail.wasCommitted() ?
+                                              detail.getCommitTime() :
+                                              detail.getAbortTime());
+                i++;
+            }
+
+            AccessedObjectsDetail accessDetail =
+                report.getAccessedObjectsDetail();
+            if (accessDetail == null) {
+                conflict = -1;
+                hasConflictingTxn = false;
+                conflictingTxn = 0;
+                objIds = null;
+                objForRead = null;
+                objDescriptions = null;
+                objSources = null;
+                return;
+            }
+            conflict = (short) accessDetail.getConflictType().ordinal();
+            byte [] otherTxn = accessDetail.getConflictingId();
+            hasConflictingTxn = (otherTxn != null);
+            conflictingTxn = hasConflictingTxn ? txnToLong(otherTxn) : 0;
+            List<AccessedObject> accesses = accessDetail.getAccessedObjects();
+            int objs = accesses.size();
+            objIds = new String[objs];
+            objForRead = new boolean[objs];
+            objDescriptions = new String[objs];
+            objSources = new String[objs];
+            i = 0;
+            for (AccessedObject obj : accesses) {
+                objIds[i] = obj.getObjectId().toString();
+                objForRead[i] = (obj.getAccessType() == AccessType.READ);
+                Object desc = obj.getDescription();
+                objDescriptions[i] =
+                    (desc != null) ? desc.getClass().toString() : null;
+                objSources[i] = obj.getSource();
+                i++;
+            }
         }
-        stmt.executeUpdate();
-    }
 
-    /** Inserts detail about each object access. */
-    private static void insertAccessObjsDetail(PreparedStatement stmt,
-                                               List<AccessedObject> accesses,
-                                               long taskKey)
-        throws SQLException
-    {
-        short count = 1;
-        stmt.setLong(1, taskKey);
-        for (AccessedObject obj : accesses) {
-            stmt.setShort(2, count++);
-            stmt.setString(3, obj.getObjectId().toString());
-            stmt.setBoolean(4, obj.getAccessType() == AccessType.READ);
-            Object desc = obj.getDescription();
-            if (desc != null) {
-                stmt.setString(5, desc.getClass().toString());
+        /** Adds an insert for all core task detail to the batch. */
+        void insertCoreDetail(PreparedStatement stmt) throws SQLException {
+            if (transactional) {
+                stmt.setLong(2, txn);
             } else {
-                stmt.setNull(5, Types.VARCHAR);
+                stmt.setNull(2, Types.BIGINT);
+            }
+            stmt.setString(3, taskType);
+            stmt.setString(4, taskOwner);
+            stmt.setBoolean(5, successful);
+            stmt.setLong(6, scheduledStartTime);
+            stmt.setLong(7, actualStartTime);
+            stmt.setShort(8, runningTime);
+            stmt.setShort(9, retryCount);
+            stmt.setShort(10, readyCount);
+            stmt.addBatch();
+        }
+
+        /** Adds inserts for all participant detail to the batch. */
+        void insertParticipantDetail(PreparedStatement stmt, long taskKey)
+            throws SQLException
+        {
+            stmt.setLong(1, taskKey);
+            for (int i = 0; i < partNames.length; i++) {
+                stmt.setString(2, partNames[i]);
+                stmt.setBoolean(3, (partFlags[i] & PREPARED) != 0);
+                stmt.setBoolean(4, (partFlags[i] & READ_ONLY) != 0);
+                stmt.setBoolean(5, (partFlags[i] & COMMITTED) != 0);
+                stmt.setBoolean(6, (partFlags[i] & DIRECT) != 0);
+                stmt.setShort(7, partPrepareTimes[i]);
+                stmt.setShort(8, partFinishTimes[i]);
+                stmt.addBatch();
+            }
+        }
+
+        /**
+         * Adds inserts for base detail about object accesses and for each
+         * object access to the batches, if there was access detail.
+         */
+        void insertAccessDetail(PreparedStatement baseStmt,
+                                PreparedStatement objsStmt, long taskKey)
+            throws SQLException
+        {
+            if (conflict < 0) {
+                return;
+            }
+            baseStmt.setLong(1, taskKey);
+            baseStmt.setShort(2, conflict);
+            if (hasConflictingTxn) {
+                baseStmt.setLong(3, conflictingTxn);
+            } else {
+                baseStmt.setNull(3, Types.BIGINT);
+            }
+            baseStmt.addBatch();
+
+            objsStmt.setLong(1, taskKey);
+            for (int i = 0; i < objIds.length; i++) {
+                objsStmt.setShort(2, (short) (i + 1));
+                objsStmt.setString(3, objIds[i]);
+                objsStmt.setBoolean(4, objForRead[i]);
+                if (objDescriptions[i] != null) {
+                    objsStmt.setString(5, objDescriptions[i]);
+                } else {
+                    objsStmt.setNull(5, Types.VARCHAR);
+                }
+                objsStmt.setString(6, objSources[i]);
+                objsStmt.addBatch();
             }
-            stmt.setString(6, obj.getSource());
-            stmt.executeUpdate();
         }
     }
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+
+/**
+ * The management interface for {@code SQLProfileListener}, which reports
+ * how many profile reports have been written to the database and how long
+ * the writes take.
+ */
+public interface SQLProfileListenerMXBean {
+
+    /** The base name under which this bean is registered. */
+    String MXBEAN_NAME =
+        "com.sun.sgs.services:type=SQLProfileListener";
+
+    /**
+     * Returns the number of reports that have been written and committed.
+     *
+     * @return the number of reports written
+     */
+    long getReportsWritten();
+
+    /**
+     * Returns the number of reports that were discarded because writing
+     * them to the database failed.
+     *
+     * @return the number of reports discarded
+     */
+    long getReportsDropped();
+
+    /**
+     * Returns the number of reports that were dropped because the queue of
+     * reports waiting to be written was full.
+     *
+     * @return the number of reports dropped on overflow
+     */
+    long getReportsOverflowed();
+
+    /**
+     * Returns the number of reports waiting to be written.
+     *
+     * @return the number of queued reports
+     */
+    int getQueuedReports();
+
+    /**
+     * Returns the number of commits that succeeded.
+     *
+     * @return the number of commits
+     */
+    long getCommits();
+
+    /**
+     * Returns the number of commits that failed and were rolled back.
+     *
+     * @return the number of failed commits
+     */
+    long getFailedCommits();
+
+    /**
+     * Returns the time taken by the most recent commit, including writing
+     * the reports that it committed.
+     *
+     * @return the time of the last commit in milliseconds
+     */
+    long getLastCommitTime();
+
+    /**
+     * Returns the longest time taken by any commit.
+     *
+     * @return the time of the longest commit in milliseconds
+     */
+    long getMaxCommitTime();
+
+    /**
+     * Returns the total time spent writing and committing reports.
+     *
+     * @return the total commit time in milliseconds
+     */
+    long getTotalCommitTime();
+
+}
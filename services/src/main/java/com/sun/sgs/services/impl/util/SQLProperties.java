@@ -24,6 +24,8 @@ import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 
@@ -53,10 +55,40 @@ public class SQLProperties {
     public static final String SQL_PASS_PROPERTY = NAME + ".pass";
     public static final String DEFAULT_PASS = "";
 
+    public static final String SQL_POOL_SIZE_PROPERTY = NAME + ".pool.size";
+    public static final String DEFAULT_POOL_SIZE = "4";
+
+    public static final String SQL_VALIDATION_TIMEOUT_PROPERTY =
+        NAME + ".validation.timeout";
+    public static final String DEFAULT_VALIDATION_TIMEOUT = "2";
+
+    public static final String SQL_RECONNECT_ATTEMPTS_PROPERTY =
+        NAME + ".reconnect.attempts";
+    public static final String DEFAULT_RECONNECT_ATTEMPTS = "5";
+
+    public static final String SQL_RECONNECT_DELAY_PROPERTY =
+        NAME + ".reconnect.delay";
+    public static final String DEFAULT_RECONNECT_DELAY = "100";
+
+    public static final String SQL_RECONNECT_MAX_DELAY_PROPERTY =
+        NAME + ".reconnect.max.delay";
+    public static final String DEFAULT_RECONNECT_MAX_DELAY = "5000";
+
+    // the pools in use, keyed by database and user
+    private static final Map<String,SQLConnectionPool> pools =
+        new HashMap<String,SQLConnectionPool>();
+
     private final String dbUrl;
     private final String dbUser;
     private final String dbPass;
 
+    // the settings for a new pool
+    private final int poolSize;
+    private final int validationTimeout;
+    private final int reconnectAttempts;
+    private final long reconnectDelay;
+    private final long reconnectMaxDelay;
+
     /** Creates an instance of {@code SQLProperties}. */
     public SQLProperties(Properties p) throws SQLException {
         String scheme = p.getProperty(SQL_SCHEME_PROPERTY, DEFAULT_SCHEME);
@@ -76,6 +108,21 @@ public class SQLProperties {
 
         dbUser = p.getProperty(SQL_USER_PROPERTY, DEFAULT_USER);
         dbPass = p.getProperty(SQL_PASS_PROPERTY, DEFAULT_PASS);
+
+        poolSize = Integer.parseInt(p.getProperty(SQL_POOL_SIZE_PROPERTY,
+                                                  DEFAULT_POOL_SIZE));
+        validationTimeout =
+            Integer.parseInt(p.getProperty(SQL_VALIDATION_TIMEOUT_PROPERTY,
+                                           DEFAULT_VALIDATION_TIMEOUT));
+        reconnectAttempts =
+            Integer.parseInt(p.getProperty(SQL_RECONNECT_ATTEMPTS_PROPERTY,
+                                           DEFAULT_RECONNECT_ATTEMPTS));
+        reconnectDelay =
+            Long.parseLong(p.getProperty(SQL_RECONNECT_DELAY_PROPERTY,
+                                         DEFAULT_RECONNECT_DELAY));
+        reconnectMaxDelay =
+            Long.parseLong(p.getProperty(SQL_RECONNECT_MAX_DELAY_PROPERTY,
+                                         DEFAULT_RECONNECT_MAX_DELAY));
     }
 
     /** Returns a new connection to the database. */
@@ -83,4 +130,46 @@ public class SQLProperties {
         return DriverManager.getConnection(dbUrl, dbUser, dbPass);
     }
 
+    /**
+     * Returns the connection pool for this database and user, creating it
+     * if no pool is in use. The pool's settings are taken from the
+     * properties that created it, and the caller must call {@code close}
+     * on the pool when it is done with it.
+     */
+    public SQLConnectionPool getConnectionPool() {
+        String key = dbUrl + "|" + dbUser;
+        synchronized (pools) {
+            SQLConnectionPool pool = pools.get(key);
+            if (pool != null) {
+                pool.users++;
+            } else {
+                pool = new SQLConnectionPool(this, key, poolSize,
+                                             validationTimeout,
+                                             reconnectAttempts,
+                                             reconnectDelay,
+                                             reconnectMaxDelay);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Releases one user's reference to a pool, returning {@code true} if
+     * that was the last reference and the pool should be closed.
+     */
+    static boolean releasePool(String key, SQLConnectionPool pool) {
+        synchronized (pools) {
+            if (pool.users <= 0) {
+                return false;
+            }
+            pool.users--;
+            if (pool.users > 0) {
+                return false;
+            }
+            pools.remove(key);
+            return true;
+        }
+    }
+
 }
@@ -19,50 +19,128 @@
 
 package com.sun.sgs.services.impl.util;
 
+import com.sun.sgs.services.impl.service.BatchTagReportListener;
 import com.sun.sgs.services.impl.service.TagReport;
-import com.sun.sgs.services.impl.service.TagReportListener;
 
 import java.math.BigInteger;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Types;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
-import java.util.Queue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
  * An implementation of {@code TagReportListener} that periodically dumps
- * all reported data to an SQL container.
+ * all reported data to an SQL container. Reports are written and
+ * committed together once at least as many as the
+ * {@code COMMIT_SIZE_PROPERTY} have been reported, or once the oldest of
+ * them has waited for the time defined by the
+ * {@code FLUSH_INTERVAL_PROPERTY}, so that tags are not held indefinitely
+ * on a quiet node.
+ * <p>
+ * The database is written by a dedicated writer thread, so a slow
+ * database does not hold up the {@code TagService} thread that delivers
+ * reports. The tags of each report are copied into one of two buffers:
+ * while one buffer fills with new reports, the writer thread writes and
+ * commits the other, and the two are swapped when a commit is due. If
+ * the writer is still busy when the filling buffer is due, reporting
+ * waits for it, so that at most two commits' worth of tags are held in
+ * memory.
+ * <p>
+ * Each tag in a report is a row in the {@code tags} table. Rows are sent
+ * to the database in batches of the size defined by the
+ * {@code BATCH_SIZE_PROPERTY}, so that many rows are written with each
+ * round trip. By default a batch is sent with the JDBC batch methods,
+ * which some drivers still send as one statement per row. If the
+ * {@code MULTI_ROW_PROPERTY} is {@code true}, each full batch is instead
+ * sent as a single {@code INSERT} statement with a row of values for each
+ * tag, which most databases, including MySQL, accept.
+ * <p>
+ * Connections are taken from the {@link SQLConnectionPool} shared by all
+ * users of the database, so a connection that fails, for instance because
+ * the database restarted, is replaced and its statements are prepared
+ * again for the next commit.
  */
-public class SQLTagReportListener implements TagReportListener {
+public class SQLTagReportListener implements BatchTagReportListener {
+
+    private static final String NAME = SQLTagReportListener.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
 
-    // the connection and the statement...these should be more dynamic,
-    // but as an example it's easier just to keep these
-    private final Connection dbConnection;
-    private final PreparedStatement statement;
+    // the pool that provides connections to the writer thread
+    private final SQLConnectionPool pool;
 
-    // the statement used to insert tag details
+    // the statement used to insert tag details, and the values for each
+    // additional row of a multi-row insert
     private static final String statementString =
         "INSERT INTO tags (node, txn, tag_id, tag_value) " +
         "VALUES (?,?,?,?)";
+    private static final String rowString = ",(?,?,?,?)";
 
-    // the queue of reports
-    private final Queue<TagReport> reportQueue;
+    // the multi-row statement for a full batch, or null if multi-row
+    // inserts are not used
+    private final String multiRowStatementString;
 
-    /** The property key used to define how many reports are queued up. */
-    public static final String COMMIT_SIZE_PROPERTY =
-        SQLTagReportListener.class.getName() + ".commit.size";
+    /** The property key used to define how many reports are committed. */
+    public static final String COMMIT_SIZE_PROPERTY = NAME + ".commit.size";
 
-    /** The default report queue size. */
+    /** The default commit size. */
     public static final String DEFAULT_COMMIT_SIZE = "10";
 
-    // the report queue size being used
+    /** The property key used to define how many rows are sent at once. */
+    public static final String BATCH_SIZE_PROPERTY = NAME + ".batch.size";
+
+    /** The default batch size. */
+    public static final String DEFAULT_BATCH_SIZE = "500";
+
+    /**
+     * The property key used to define whether full batches are sent as a
+     * single multi-row {@code INSERT}.
+     */
+    public static final String MULTI_ROW_PROPERTY = NAME + ".multi.row";
+
+    /** The default for the multi.row property. */
+    public static final String DEFAULT_MULTI_ROW = "false";
+
+    /**
+     * The property key used to define the longest time in milliseconds
+     * that a report waits before it is committed.
+     */
+    public static final String FLUSH_INTERVAL_PROPERTY =
+        NAME + ".flush.interval";
+
+    /** The default flush interval. */
+    public static final String DEFAULT_FLUSH_INTERVAL = "1000";
+
+    // the largest batch, chosen to keep a multi-row insert within the
+    // limit on parameters per statement that many databases have
+    private static final int MAX_BATCH_SIZE = 16000;
+
+    // the commit size, batch size and flush interval being used
     private final int commitSize;
+    private final int batchSize;
+    private final long flushInterval;
+
+    // the node identifier, written with every row
+    private final short nodeId;
+
+    // the lock guarding the buffers, the buffer being filled with new
+    // reports, the buffer being written or null if the writer is idle, and
+    // the idle buffer that is not being filled
+    private final Object lock = new Object();
+    private RowBuffer filling = new RowBuffer();
+    private RowBuffer flushing = null;
+    private RowBuffer spare = new RowBuffer();
+    private boolean closed = false;
+
+    // the thread that writes to the database
+    private final Thread writerThread;
 
     /**
      * Create an instance of {@code SQLTagReportListener}.
@@ -79,80 +157,319 @@ public class SQLTagReportListener implements TagReportListener {
         if (commitSize < 1) {
             throw new IllegalStateException("commit size must be positive");
         }
-        reportQueue = new ArrayDeque<TagReport>(commitSize);
+        batchSize =
+            Integer.parseInt(p.getProperty(BATCH_SIZE_PROPERTY,
+                                           DEFAULT_BATCH_SIZE));
+        if ((batchSize < 1) || (batchSize > MAX_BATCH_SIZE)) {
+            throw new IllegalStateException("batch size must be between " +
+                                            "1 and " + MAX_BATCH_SIZE);
+        }
+        flushInterval =
+            Long.parseLong(p.getProperty(FLUSH_INTERVAL_PROPERTY,
+                                         DEFAULT_FLUSH_INTERVAL));
+        if (flushInterval < 1) {
+            throw new IllegalStateException("flush interval must be " +
+                                            "positive");
+        }
+        boolean multiRow =
+            Boolean.valueOf(p.getProperty(MULTI_ROW_PROPERTY,
+                                          DEFAULT_MULTI_ROW));
+        this.nodeId = (short) nodeId;
+
+        if (multiRow && (batchSize > 1)) {
+            StringBuilder multiRowString = new StringBuilder(statementString);
+            for (int i = 1; i < batchSize; i++) {
+                multiRowString.append(rowString);
+            }
+            multiRowStatementString = multiRowString.toString();
+        } else {
+            multiRowStatementString = null;
+        }
 
         try {
             SQLProperties sqlProps = new SQLProperties(p);
-            dbConnection = sqlProps.getConnection();
+            pool = sqlProps.getConnectionPool();
         } catch (SQLException sqle) {
             throw new IllegalStateException("couldn't create connection", sqle);
         }
 
+        // check that the database is reachable and the statements are valid
         try {
-            dbConnection.setAutoCommit(false);
-            statement =
-                dbConnection.prepareStatement(statementString);
-            statement.setShort(1, (short) nodeId);
+            SQLConnectionPool.PooledConnection conn = pool.acquire();
+            try {
+                conn.prepareStatement(statementString);
+                if (multiRowStatementString != null) {
+                    conn.prepareStatement(multiRowStatementString);
+                }
+            } finally {
+                pool.release(conn);
+            }
         } catch (SQLException sqle) {
-            shutdown();
+            pool.close();
             throw new IllegalStateException("couldn't setup database", sqle);
         }
+        logger.config("Writing tags in batches of " + batchSize +
+                      (multiRowStatementString != null ?
+                       " rows per statement" :
+                       " rows") + ", committing every " + commitSize +
+                      " reports or " + flushInterval + " ms");
+
+        writerThread = new Thread(new Writer(), NAME + "-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
     /* Implement TagReportListener. */
 
     /** {@inheritDoc} */
     public void report(TagReport tagReport) {
-        try {
-            // only proceed if we've hit the commit size
-            if (reportQueue.size() < commitSize) {
-                return;
-            }
-            long start = System.currentTimeMillis();
-            TagReport report = reportQueue.remove();
-            while (report != null) {
-                insertTagDetail(statement, report);
-                report = reportQueue.poll();
+        synchronized (lock) {
+            boolean wasEmpty = (filling.reports == 0);
+            filling.add(tagReport);
+            filled(wasEmpty);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void report(List<TagReport> tagReports) {
+        synchronized (lock) {
+            boolean wasEmpty = (filling.reports == 0);
+            for (TagReport tagReport : tagReports) {
+                filling.add(tagReport);
             }
-            // commit the collection of updates
-            dbConnection.commit();
-            System.out.println("Tag: " + (System.currentTimeMillis() - start));
-        } catch (SQLException sqle) {
-            // TODO: we might want a more formal error processing mechanism
-            sqle.printStackTrace();
-        } finally {
-            // queue up the provided report
-            reportQueue.add(tagReport);
+            filled(wasEmpty);
         }
     }
 
     /** {@inheritDoc} */
     public void shutdown() {
+        // the writer commits anything that is left before it exits
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
         try {
-            dbConnection.close();
-        } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            writerThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted waiting for the writer to finish");
         }
+        pool.close();
     }
 
     /* Private helper methods. */
 
-    /** Inserts all detail from the given report. */
-    private static void insertTagDetail(PreparedStatement stmt,
-                                        TagReport report)
+    /**
+     * Called after reports are added to the filling buffer. Hands the
+     * buffer off once it is full, and otherwise wakes the writer when the
+     * buffer first becomes non-empty so that it starts timing the flush
+     * interval. The caller must hold the lock.
+     */
+    private void filled(boolean wasEmpty) {
+        if (filling.reports >= commitSize) {
+            handOff();
+        } else if (wasEmpty && (filling.reports > 0)) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Passes the filling buffer to the writer, first waiting for the
+     * writer to finish with the other buffer. The caller must hold the
+     * lock.
+     */
+    private void handOff() {
+        boolean interrupted = false;
+        while (flushing != null) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ie) {
+                // keep waiting, and restore the interrupt once handed off
+                interrupted = true;
+            }
+        }
+        flushing = filling;
+        filling = spare;
+        spare = null;
+        lock.notifyAll();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes and commits all of the rows in a buffer. Any failure is
+     * logged and rolled back, discarding the rows.
+     */
+    private void write(RowBuffer buffer) {
+        long start = System.currentTimeMillis();
+        SQLConnectionPool.PooledConnection conn = null;
+        try {
+            conn = pool.acquire();
+            for (int first = 0; first < buffer.rows; first += batchSize) {
+                sendRows(conn, buffer, first,
+                         Math.min(batchSize, buffer.rows - first));
+            }
+            conn.commit();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Committed " + buffer.rows + " tags from " +
+                            buffer.reports + " reports in " +
+                            (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (SQLException sqle) {
+            // TODO: we might want a more formal error processing mechanism
+            logger.log(Level.WARNING, "Failed to write tags, discarding " +
+                       buffer.rows + " tags from " + buffer.reports +
+                       " reports", sqle);
+            if (conn != null) {
+                conn.rollback();
+            }
+        } finally {
+            if (conn != null) {
+                pool.release(conn);
+            }
+        }
+    }
+
+    /**
+     * Sends some rows of a buffer, as one multi-row statement if there
+     * are enough rows and multi-row inserts are enabled, or otherwise as
+     * a batch.
+     */
+    private void sendRows(SQLConnectionPool.PooledConnection conn,
+                          RowBuffer buffer, int first, int count)
         throws SQLException
     {
-        long txn = (new BigInteger(1, report.getTransactionId())).longValue();
-        stmt.setLong(2, txn);
-        for (long tag : report.getTags()) {
-            Object tagValue = report.getTagValue(tag);
-            stmt.setLong(3, tag);
-            if (tagValue == null) {
-                stmt.setNull(4, Types.VARCHAR);
-            } else {
-                stmt.setString(4, tagValue.toString());
+        if ((multiRowStatementString != null) && (count == batchSize)) {
+            PreparedStatement multiRowStatement =
+                conn.prepareStatement(multiRowStatementString);
+            for (int i = 0; i < count; i++) {
+                setRow(multiRowStatement, i * 4, buffer, first + i);
+            }
+            multiRowStatement.executeUpdate();
+        } else {
+            PreparedStatement statement =
+                conn.prepareStatement(statementString);
+            for (int i = 0; i < count; i++) {
+                setRow(statement, 0, buffer, first + i);
+                statement.addBatch();
             }
-            stmt.executeUpdate();
+            statement.executeBatch();
+        }
+    }
+
+    /** Sets the parameters of a row, starting after the given offset. */
+    private void setRow(PreparedStatement stmt, int offset,
+                        RowBuffer buffer, int row)
+        throws SQLException
+    {
+        stmt.setShort(offset + 1, nodeId);
+        stmt.setLong(offset + 2, buffer.txns[row]);
+        stmt.setLong(offset + 3, buffer.tags[row]);
+        if (buffer.values[row] == null) {
+            stmt.setNull(offset + 4, Types.VARCHAR);
+        } else {
+            stmt.setString(offset + 4, buffer.values[row]);
+        }
+    }
+
+    /** Returns the text stored for a tag's value, or {@code null}. */
+    private static String valueString(TagReport report, long tag) {
+        // typed values are read without boxing them
+        switch (report.getTagValueType(tag)) {
+        case NONE:
+            return null;
+        case LONG:
+            return Long.toString(report.getLongTagValue(tag));
+        case DOUBLE:
+            return Double.toString(report.getDoubleTagValue(tag));
+        case STRING:
+            return report.getStringTagValue(tag);
+        default:
+            return report.getTagValue(tag).toString();
+        }
+    }
+
+    /**
+     * Private class that writes buffers handed off by the reporting
+     * thread, and hands off the filling buffer itself when its oldest
+     * report has waited for the flush interval.
+     */
+    private class Writer implements Runnable {
+        /** {@inheritDoc} */
+        public void run() {
+            while (true) {
+                RowBuffer buffer;
+                synchronized (lock) {
+                    try {
+                        while (flushing == null) {
+                            if (filling.reports > 0) {
+                                long wait = filling.firstTime +
+                                    flushInterval - System.currentTimeMillis();
+                                if (closed || (wait <= 0)) {
+                                    flushing = filling;
+                                    filling = spare;
+                                    spare = null;
+                                    break;
+                                }
+                                lock.wait(wait);
+                            } else if (closed) {
+                                return;
+                            } else {
+                                lock.wait();
+                            }
+                        }
+                    } catch (InterruptedException ie) {
+                        logger.log(Level.FINE, "Writer was interrupted", ie);
+                        continue;
+                    }
+                    buffer = flushing;
+                }
+                write(buffer);
+                buffer.clear();
+                synchronized (lock) {
+                    spare = buffer;
+                    flushing = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Private class holding the rows for the tags of some reports. */
+    private static final class RowBuffer {
+        long [] txns = new long[64];
+        long [] tags = new long[64];
+        String [] values = new String[64];
+        int rows = 0;
+        int reports = 0;
+        // the time at which the first report was added
+        long firstTime;
+        /** Adds a row for each tag in the report. */
+        void add(TagReport report) {
+            if (reports == 0) {
+                firstTime = System.currentTimeMillis();
+            }
+            reports++;
+            long txn =
+                (new BigInteger(1, report.getTransactionId())).longValue();
+            for (long tag : report.getTagArray()) {
+                if (rows == txns.length) {
+                    txns = Arrays.copyOf(txns, rows * 2);
+                    tags = Arrays.copyOf(tags, rows * 2);
+                    values = Arrays.copyOf(values, rows * 2);
+                }
+                txns[rows] = txn;
+                tags[rows] = tag;
+                values[rows] = valueString(report, tag);
+                rows++;
+            }
+        }
+        /** Removes all rows, keeping the arrays for re-use. */
+        void clear() {
+            Arrays.fill(values, 0, rows, null);
+            rows = 0;
+            reports = 0;
         }
     }
 
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import com.sun.sgs.services.impl.service.BatchTagReportListener;
+import com.sun.sgs.services.impl.service.TagReport;
+import com.sun.sgs.services.impl.service.TypedTagConsumer;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * An implementation of {@code TagReportListener} that aggregates tag counts
+ * and value statistics in memory, so that questions like "how often was
+ * this tag applied in the last minute" can be answered without an
+ * external database.
+ * <p>
+ * Each tag has a ring of one-second buckets covering the last minute, and
+ * each bucket holds the number of times the tag was applied along with
+ * the count, sum, minimum and maximum of any numeric values. Reports are
+ * placed in buckets by the time they reach this listener, since they
+ * arrive some time after their transactions start, and a window covers
+ * the last complete seconds, not the second that is still being filled.
+ * Queries over any window of up to a minute, including the top tags by
+ * count, are
+ * available through this class and through the
+ * {@link TagAggregationMXBean} that it registers. Only the listener's
+ * consumer thread updates the buckets, and the counters are atomic so
+ * that queries may run at any time, though a query that runs while a
+ * bucket is being rolled over to a new second may see it part-way reset.
+ * <p>
+ * The number of distinct tags tracked is bounded by the
+ * {@code MAX_TAGS_PROPERTY}; tags that have not been applied for a
+ * minute are discarded, and applications of new tags beyond the bound
+ * are only counted as untracked.
+ * <p>
+ * When the {@code TagService} samples transactions or tags, each reported
+ * application is counted by its weight, so the counts and sums are
+ * estimates of all applications rather than of the sampled ones.
+ */
+public class TagAggregationListener
+    implements BatchTagReportListener, TagAggregationMXBean
+{
+
+    private static final String NAME = TagAggregationListener.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    /** The property key used to define how many tags may be tracked. */
+    public static final String MAX_TAGS_PROPERTY = NAME + ".max.tags";
+
+    /** The default maximum number of tracked tags. */
+    public static final String DEFAULT_MAX_TAGS = "10000";
+
+    /** The property key used to define how many top tags are reported. */
+    public static final String TOP_COUNT_PROPERTY = NAME + ".top.count";
+
+    /** The default number of top tags reported. */
+    public static final String DEFAULT_TOP_COUNT = "10";
+
+    // the longest window, and the number of one-second buckets kept for
+    // each tag, which includes the second that is still being filled
+    private static final int MAX_WINDOW = 60;
+    private static final int BUCKETS = MAX_WINDOW + 1;
+
+    // the counters for each tracked tag
+    private final ConcurrentHashMap<Long,TagCounters> counters =
+        new ConcurrentHashMap<Long,TagCounters>();
+
+    private final int maxTags;
+    private final int topCount;
+
+    // the applications of tags that could not be tracked
+    private final AtomicLong untrackedCount = new AtomicLong(0);
+
+    // the consumer used to record the tags of each report, and the last
+    // second at which idle tags were discarded, used only by the
+    // reporting thread
+    private final Recorder recorder = new Recorder();
+    private long lastSweep = 0;
+
+    // the name of the management bean, or null if it was not registered
+    private final ObjectName mxbeanName;
+
+    /**
+     * Creates an instance of {@code TagAggregationListener}.
+     *
+     * @param p the node properties
+     * @param nodeId the node identifier
+     *
+     * @throws IllegalArgumentException if the properties are invalid
+     */
+    public TagAggregationListener(Properties p, long nodeId) {
+        maxTags = Integer.parseInt(p.getProperty(MAX_TAGS_PROPERTY,
+                                                 DEFAULT_MAX_TAGS));
+        topCount = Integer.parseInt(p.getProperty(TOP_COUNT_PROPERTY,
+                                                  DEFAULT_TOP_COUNT));
+        if ((maxTags < 1) || (topCount < 0)) {
+            throw new IllegalArgumentException("Invalid aggregation " +
+                                               "settings: " + maxTags + ", " +
+                                               topCount);
+        }
+
+        ObjectName name = null;
+        try {
+            name = new ObjectName(MXBEAN_NAME + ",node=" + nodeId);
+            ManagementFactory.getPlatformMBeanServer().
+                registerMBean(this, name);
+        } catch (JMException jme) {
+            logger.log(Level.WARNING, "Could not register management bean",
+                       jme);
+            name = null;
+        }
+        mxbeanName = name;
+    }
+
+    /* Implement TagReportListener. */
+
+    /** {@inheritDoc} */
+    public void report(TagReport tagReport) {
+        record(tagReport, currentSecond());
+    }
+
+    /** {@inheritDoc} */
+    public void report(List<TagReport> tagReports) {
+        long second = currentSecond();
+        for (TagReport tagReport : tagReports) {
+            record(tagReport, second);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        if (mxbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().
+                    unregisterMBean(mxbeanName);
+            } catch (JMException jme) {
+                logger.log(Level.FINE, "Could not unregister management " +
+                           "bean", jme);
+            }
+        }
+    }
+
+    /* Implement TagAggregationMXBean. */
+
+    /** {@inheritDoc} */
+    public List<TagStatistics> getTopTagsLastSecond() {
+        return getTopTags(topCount, 1);
+    }
+
+    /** {@inheritDoc} */
+    public List<TagStatistics> getTopTagsLast10Seconds() {
+        return getTopTags(topCount, 10);
+    }
+
+    /** {@inheritDoc} */
+    public List<TagStatistics> getTopTagsLastMinute() {
+        return getTopTags(topCount, MAX_WINDOW);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if {@code count} is negative or
+     *                                  {@code windowSeconds} is out of range
+     */
+    public List<TagStatistics> getTopTags(int count, int windowSeconds) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative");
+        }
+        checkWindow(windowSeconds);
+        long now = lastCompleteSecond();
+        List<TagStatistics> all = new ArrayList<TagStatistics>();
+        for (TagCounters tagCounters : counters.values()) {
+            TagStatistics stats = tagCounters.snapshot(now, windowSeconds);
+            if (stats.getCount() > 0) {
+                all.add(stats);
+            }
+        }
+        Collections.sort(all, new Comparator<TagStatistics>() {
+                public int compare(TagStatistics s1, TagStatistics s2) {
+                    long c1 = s1.getCount();
+                    long c2 = s2.getCount();
+                    return (c1 > c2) ? -1 : ((c1 == c2) ? 0 : 1);
+                }
+            });
+        return new ArrayList<TagStatistics>
+            (all.subList(0, Math.min(count, all.size())));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if {@code windowSeconds} is out of
+     *                                  range
+     */
+    public TagStatistics getTagStatistics(long tag, int windowSeconds) {
+        checkWindow(windowSeconds);
+        TagCounters tagCounters = counters.get(tag);
+        if (tagCounters == null) {
+            return new TagStatistics(tag, windowSeconds, 0, 0, 0.0,
+                                     Double.NaN, Double.NaN);
+        }
+        return tagCounters.snapshot(lastCompleteSecond(), windowSeconds);
+    }
+
+    /** {@inheritDoc} */
+    public long getUntrackedCount() {
+        return untrackedCount.get();
+    }
+
+    /* Private helper methods. */
+
+    /** Records all of the tags in a report that arrived in the given second. */
+    private void record(TagReport tagReport, long second) {
+        if (second - lastSweep >= BUCKETS) {
+            sweep(second);
+        }
+        recorder.second = second;
+        recorder.report = tagReport;
+        tagReport.forEachTag(recorder);
+        recorder.report = null;
+    }
+
+    /** Discards the counters of tags that have not been applied lately. */
+    private void sweep(long second) {
+        Iterator<TagCounters> it = counters.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().latestSecond() <= second - BUCKETS) {
+                it.remove();
+            }
+        }
+        lastSweep = second;
+    }
+
+    /** Checks that a window is between one second and a minute long. */
+    private static void checkWindow(int windowSeconds) {
+        if ((windowSeconds < 1) || (windowSeconds > MAX_WINDOW)) {
+            throw new IllegalArgumentException("Window must be between 1 " +
+                                               "and " + MAX_WINDOW +
+                                               " seconds");
+        }
+    }
+
+    /** Returns the current time in seconds. */
+    private static long currentSecond() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /** Returns the last second that has been completely filled. */
+    private static long lastCompleteSecond() {
+        return currentSecond() - 1;
+    }
+
+    /** Private consumer that records each tag of a report. */
+    private class Recorder implements TypedTagConsumer {
+        // the report being recorded, and the second it arrived in
+        TagReport report;
+        long second;
+        /** {@inheritDoc} */
+        public void consumeLong(long tag, long tagValue) {
+            record(tag, true, (double) tagValue);
+        }
+        /** {@inheritDoc} */
+        public void consumeDouble(long tag, double tagValue) {
+            record(tag, true, tagValue);
+        }
+        /** {@inheritDoc} */
+        public void consume(long tag, Object tagValue) {
+            if (tagValue instanceof Number) {
+                record(tag, true, ((Number) tagValue).doubleValue());
+            } else {
+                record(tag, false, 0.0);
+            }
+        }
+        /** Records a tag, with a value if {@code hasValue} is set. */
+        private void record(long tag, boolean hasValue, double value) {
+            TagCounters tagCounters = counters.get(tag);
+            if (tagCounters == null) {
+                if (counters.size() >= maxTags) {
+                    untrackedCount.incrementAndGet();
+                    return;
+                }
+                tagCounters = new TagCounters(tag);
+                counters.put(tag, tagCounters);
+            }
+            tagCounters.record(second, report.getTagWeight(tag), hasValue,
+                               value);
+        }
+    }
+
+    /**
+     * Private class holding the per-second buckets for a single tag. Only
+     * one thread calls {@code record}, while any thread may take a
+     * snapshot. Counts are weighted, so they and the sums, minimums and
+     * maximums are all stored as the bits of a {@code double}.
+     */
+    private static final class TagCounters {
+        private final long tag;
+        private final AtomicLongArray seconds = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray valueCounts =
+            new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray sums = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray mins = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray maxs = new AtomicLongArray(BUCKETS);
+        // the newest second recorded, used to discard idle tags
+        private volatile long latest = -1;
+        TagCounters(long tag) {
+            this.tag = tag;
+            for (int i = 0; i < BUCKETS; i++) {
+                seconds.set(i, -1);
+            }
+        }
+        /**
+         * Records an application of the tag in the given second, counted
+         * by its weight, and its value if {@code hasValue} is set.
+         */
+        void record(long second, double weight, boolean hasValue,
+                    double value)
+        {
+            int i = (int) (second % BUCKETS);
+            long bucketSecond = seconds.get(i);
+            if (bucketSecond != second) {
+                if (bucketSecond > second) {
+                    // the report is older than the window, so ignore it
+                    return;
+                }
+                counts.set(i, Double.doubleToLongBits(0.0));
+                valueCounts.set(i, Double.doubleToLongBits(0.0));
+                sums.set(i, Double.doubleToLongBits(0.0));
+                mins.set(i, Double.doubleToLongBits(Double.NaN));
+                maxs.set(i, Double.doubleToLongBits(Double.NaN));
+                seconds.set(i, second);
+            }
+            if (second > latest) {
+                latest = second;
+            }
+            add(counts, i, weight);
+            if (hasValue) {
+                add(valueCounts, i, weight);
+                add(sums, i, weight * value);
+                double min = Double.longBitsToDouble(mins.get(i));
+                if (Double.isNaN(min) || (value < min)) {
+                    mins.set(i, Double.doubleToLongBits(value));
+                }
+                double max = Double.longBitsToDouble(maxs.get(i));
+                if (Double.isNaN(max) || (value > max)) {
+                    maxs.set(i, Double.doubleToLongBits(value));
+                }
+            }
+        }
+        /** Adds to a bucket stored as the bits of a {@code double}. */
+        private static void add(AtomicLongArray array, int i, double delta) {
+            array.set(i, Double.doubleToLongBits
+                      (Double.longBitsToDouble(array.get(i)) + delta));
+        }
+        /** Returns the newest second in which the tag was applied. */
+        long latestSecond() {
+            return latest;
+        }
+        /** Sums the buckets for the window ending at the given second. */
+        TagStatistics snapshot(long now, int windowSeconds) {
+            double count = 0.0;
+            double valueCount = 0.0;
+            double sum = 0.0;
+            double min = Double.NaN;
+            double max = Double.NaN;
+            for (int i = 0; i < BUCKETS; i++) {
+                long second = seconds.get(i);
+                if ((second <= now - windowSeconds) || (second > now)) {
+                    continue;
+                }
+                count += Double.longBitsToDouble(counts.get(i));
+                double values = Double.longBitsToDouble(valueCounts.get(i));
+                if (values == 0.0) {
+                    continue;
+                }
+                valueCount += values;
+                sum += Double.longBitsToDouble(sums.get(i));
+                double bucketMin = Double.longBitsToDouble(mins.get(i));
+                double bucketMax = Double.longBitsToDouble(maxs.get(i));
+                if (Double.isNaN(min) || (bucketMin < min)) {
+                    min = bucketMin;
+                }
+                if (Double.isNaN(max) || (bucketMax > max)) {
+                    max = bucketMax;
+                }
+            }
+            return new TagStatistics(tag, windowSeconds, Math.round(count),
+                                     Math.round(valueCount), sum, min, max);
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import java.util.List;
+
+
+/**
+ * The management interface for {@code TagAggregationListener}, which
+ * answers queries about the tags seen over the last second, ten seconds
+ * and minute. Each window covers the last complete seconds before the
+ * current one.
+ */
+public interface TagAggregationMXBean {
+
+    /** The base name under which this bean is registered. */
+    String MXBEAN_NAME =
+        "com.sun.sgs.services:type=TagAggregationListener";
+
+    /**
+     * Returns the most frequent tags over the last second.
+     *
+     * @return the statistics for the top tags, most frequent first
+     */
+    List<TagStatistics> getTopTagsLastSecond();
+
+    /**
+     * Returns the most frequent tags over the last ten seconds.
+     *
+     * @return the statistics for the top tags, most frequent first
+     */
+    List<TagStatistics> getTopTagsLast10Seconds();
+
+    /**
+     * Returns the most frequent tags over the last minute.
+     *
+     * @return the statistics for the top tags, most frequent first
+     */
+    List<TagStatistics> getTopTagsLastMinute();
+
+    /**
+     * Returns the given number of most frequent tags over the given window.
+     *
+     * @param count the number of tags to return
+     * @param windowSeconds the length of the window, from 1 to 60 seconds
+     *
+     * @return the statistics for the top tags, most frequent first
+     */
+    List<TagStatistics> getTopTags(int count, int windowSeconds);
+
+    /**
+     * Returns the statistics for a single tag over the given window.
+     *
+     * @param tag the tag
+     * @param windowSeconds the length of the window, from 1 to 60 seconds
+     *
+     * @return the statistics for the tag
+     */
+    TagStatistics getTagStatistics(long tag, int windowSeconds);
+
+    /**
+     * Returns the number of tag applications that were not counted because
+     * too many distinct tags were already being tracked.
+     *
+     * @return the number of untracked tag applications
+     */
+    long getUntrackedCount();
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.Task;
+
+import com.sun.sgs.services.app.AsyncRunnable;
+import com.sun.sgs.services.app.TagManager;
+import com.sun.sgs.services.app.TransactionRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An {@code AsyncRunnable} that measures the memory allocated by the
+ * {@code TagManager} for each tagged transaction. Like the
+ * {@code AsyncTaskBenchmark}, it is intended to be run as the startup task
+ * of the {@code NodeStartupTaskService}, and is configured through system
+ * properties: {@code TRANSACTIONS_PROPERTY} and
+ * {@code TAGS_PER_TXN_PROPERTY}.
+ * <p>
+ * The benchmark runs the same number of empty transactions and tagged
+ * transactions on the current thread, measuring the bytes that the thread
+ * allocates for each. The difference between the two is the cost of
+ * tagging, which is logged at {@code INFO}. This relies on the JVM
+ * supporting per-thread allocation counts, and the {@code TagService}
+ * must have at least one listener or tags are ignored.
+ */
+public class TagBenchmark implements AsyncRunnable {
+
+    private static final String NAME = TagBenchmark.class.getName();
+    private static final Logger logger = Logger.getLogger(NAME);
+
+    /** The system property defining the number of transactions to run. */
+    public static final String TRANSACTIONS_PROPERTY = NAME + ".transactions";
+
+    /** The default number of transactions. */
+    public static final int DEFAULT_TRANSACTIONS = 100000;
+
+    /** The system property defining the tags applied per transaction. */
+    public static final String TAGS_PER_TXN_PROPERTY = NAME + ".tags.per.txn";
+
+    /** The default number of tags applied per transaction. */
+    public static final int DEFAULT_TAGS_PER_TXN = 3;
+
+    /** {@inheritDoc} */
+    public void run(TransactionRunner transactionRunner) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if ((! (threadBean instanceof com.sun.management.ThreadMXBean)) ||
+            (! ((com.sun.management.ThreadMXBean) threadBean).
+             isThreadAllocatedMemorySupported()))
+        {
+            logger.warning("Allocation counts are not supported; " +
+                           "not running benchmark");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocBean =
+            (com.sun.management.ThreadMXBean) threadBean;
+        allocBean.setThreadAllocatedMemoryEnabled(true);
+
+        int transactions = Integer.getInteger(TRANSACTIONS_PROPERTY,
+                                              DEFAULT_TRANSACTIONS);
+        int tags = Integer.getInteger(TAGS_PER_TXN_PROPERTY,
+                                      DEFAULT_TAGS_PER_TXN);
+        Task emptyTask = new TaggingTask(0);
+        Task taggingTask = new TaggingTask(tags);
+
+        try {
+            // warm up both paths, including the pool of reports
+            measure(allocBean, transactionRunner, emptyTask, transactions);
+            measure(allocBean, transactionRunner, taggingTask, transactions);
+
+            double empty = measure(allocBean, transactionRunner, emptyTask,
+                                   transactions);
+            double tagged = measure(allocBean, transactionRunner,
+                                    taggingTask, transactions);
+            StringBuilder sb = new StringBuilder("Tag benchmark results:");
+            sb.append("\n  transactions: ").append(transactions);
+            sb.append("\n  tags per transaction: ").append(tags);
+            sb.append("\n  bytes per empty transaction: ").append(empty);
+            sb.append("\n  bytes per tagged transaction: ").append(tagged);
+            sb.append("\n  bytes per transaction for tagging: ").
+                append(tagged - empty);
+            logger.info(sb.toString());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Benchmark failed", e);
+        }
+    }
+
+    /** Returns the average bytes allocated by running the given task. */
+    private static double measure(com.sun.management.ThreadMXBean allocBean,
+                                  TransactionRunner transactionRunner,
+                                  Task task, int transactions)
+        throws Exception
+    {
+        long threadId = Thread.currentThread().getId();
+        long before = allocBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < transactions; i++) {
+            transactionRunner.runTransaction(task);
+        }
+        long after = allocBean.getThreadAllocatedBytes(threadId);
+        return (after - before) / (double) transactions;
+    }
+
+    /** A task that applies a fixed number of tags. */
+    private static class TaggingTask implements Task {
+        private final int tags;
+        TaggingTask(int tags) {
+            this.tags = tags;
+        }
+        /** {@inheritDoc} */
+        public void run() {
+            if (tags == 0) {
+                return;
+            }
+            TagManager manager = AppContext.getManager(TagManager.class);
+            for (int i = 0; i < tags; i++) {
+                manager.tagTask(i);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009 Sun Microsystems, Inc.
+ *
+ * This file is part of Project Darkstar Services.
+ *
+ * Project Darkstar Services is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation and
+ * distributed hereunder to you.
+ *
+ * Project Darkstar Services is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sun.sgs.services.impl.util;
+
+import java.beans.ConstructorProperties;
+
+
+/**
+ * The statistics for a single tag over a window of time, as collected by
+ * the {@code TagAggregationListener}. Values that are instances of
+ * {@code Number} are summarized by their sum, minimum and maximum; other
+ * values are only counted with the tag. If tags are sampled then the
+ * counts and the sum are estimates, and the counts are rounded to whole
+ * numbers.
+ */
+public final class TagStatistics {
+
+    private final long tag;
+    private final int windowSeconds;
+    private final long count;
+    private final long valueCount;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    /**
+     * Creates an instance of {@code TagStatistics}.
+     *
+     * @param tag the tag
+     * @param windowSeconds the length of the window in seconds
+     * @param count the number of times the tag was applied
+     * @param valueCount the number of numeric values applied with the tag
+     * @param sum the sum of the numeric values
+     * @param min the smallest numeric value, or {@code NaN} if none
+     * @param max the largest numeric value, or {@code NaN} if none
+     */
+    @ConstructorProperties({"tag", "windowSeconds", "count", "valueCount",
+                            "sum", "min", "max"})
+    public TagStatistics(long tag, int windowSeconds, long count,
+                         long valueCount, double sum, double min, double max)
+    {
+        this.tag = tag;
+        this.windowSeconds = windowSeconds;
+        this.count = count;
+        this.valueCount = valueCount;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Returns the tag.
+     *
+     * @return the tag
+     */
+    public long getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns the length of the window in seconds.
+     *
+     * @return the window length
+     */
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Returns the number of times the tag was applied in the window.
+     *
+     * @return the tag count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of numeric values applied with the tag.
+     *
+     * @return the value count
+     */
+    public long getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * Returns the sum of the numeric values applied with the tag.
+     *
+     * @return the value sum
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the smallest numeric value applied with the tag.
+     *
+     * @return the minimum value, or {@code NaN} if there were no values
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest numeric value applied with the tag.
+     *
+     * @return the maximum value, or {@code NaN} if there were no values
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "TagStatistics[tag:" + tag + ", window:" + windowSeconds +
+            "s, count:" + count + ", values:" + valueCount + ", sum:" + sum +
+            ", min:" + min + ", max:" + max + "]";
+    }
+
+}